@@ -0,0 +1,37 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.security.*;
+import nachos.ag.*;
+
+/**
+ * An autograder that only keeps the privilege it is started with, so that
+ * <tt>BenchKernel</tt> can drive machine internals that the kernel cannot
+ * reach on its own, such as scheduling interrupts. Select it with
+ * <tt>-- nachos.bench.BenchGrader</tt>.
+ */
+public class BenchGrader extends AutoGrader {
+    /**
+     * Allocate a new benchmark autograder.
+     */
+    public BenchGrader() {
+    }
+
+    public void start(Privilege privilege, String[] args) {
+	BenchGrader.privilege = privilege;
+
+	super.start(privilege, args);
+    }
+
+    /**
+     * Return the privilege this autograder was started with.
+     *
+     * @return	the privilege, or <tt>null</tt> if Nachos was started with a
+     *		different autograder.
+     */
+    static Privilege getPrivilege() {
+	return privilege;
+    }
+
+    private static Privilege privilege = null;
+}
@@ -0,0 +1,557 @@
+package nachos.bench;
+
+import java.util.StringTokenizer;
+
+import nachos.machine.*;
+import nachos.security.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+import nachos.network.*;
+
+/**
+ * A kernel that measures how fast the simulator runs its hot paths, instead
+ * of running a shell. Each benchmark is run a few times to warm up the JVM,
+ * then a few more times, and the best of those is reported.
+ *
+ * <p>
+ * Results are printed one per line as
+ * <tt>benchmark,parameter,score,unit</tt>, after a header line. If
+ * <tt>Bench.results</tt> names a file, the same lines are also written to that
+ * file in the test directory, so that results can be collected and compared
+ * between runs. Scores are always in operations per second of real time, so
+ * larger is better.
+ *
+ * <p>
+ * The interrupt benchmark needs to schedule interrupts itself, and is skipped
+ * unless Nachos is started with <tt>-- nachos.bench.BenchGrader</tt>. The
+ * <tt>PostOffice</tt> benchmark is skipped unless the machine has a network
+ * link.
+ */
+public class BenchKernel extends VMKernel {
+    /**
+     * Allocate a new benchmark kernel.
+     */
+    public BenchKernel() {
+	super();
+    }
+
+    /**
+     * Initialize this kernel.
+     */
+    public void initialize(String[] args) {
+	super.initialize(args);
+
+	programFinished = new Semaphore(0);
+
+	if (Machine.networkLink() != null)
+	    postOffice = new PostOffice();
+    }
+
+    /**
+     * Test this kernel.
+     */
+    public void selfTest() {
+	// test nothing;
+    }
+
+    /**
+     * Run every benchmark, and report the results.
+     */
+    public void run() {
+	String fileName = Config.getString("Bench.results");
+	if (fileName != null) {
+	    results = ThreadedKernel.fileSystem.open(fileName, true);
+	    Lib.assert(results != null);
+	}
+
+	report("benchmark,parameter,score,unit");
+
+	String programs = Config.getString("Bench.programs");
+	if (programs == null)
+	    programs = "matmult.coff,sort.coff";
+
+	StringTokenizer tokens = new StringTokenizer(programs, ",");
+	while (tokens.hasMoreTokens())
+	    benchmarkProgram(tokens.nextToken());
+
+	benchmarkYield(2);
+	benchmarkYield(16);
+
+	for (int i=0; i<schedulerSizes.length; i++) {
+	    benchmarkScheduler("RoundRobinScheduler", new RoundRobinScheduler(),
+			       schedulerSizes[i]);
+	    benchmarkScheduler("PriorityScheduler", new PriorityScheduler(),
+			       schedulerSizes[i]);
+	    benchmarkScheduler("LotteryScheduler", new LotteryScheduler(),
+			       schedulerSizes[i]);
+	    benchmarkScheduler("StrideScheduler", new StrideScheduler(),
+			       schedulerSizes[i]);
+	    benchmarkScheduler("FairScheduler", new FairScheduler(),
+			       schedulerSizes[i]);
+	}
+
+	for (int i=0; i<donationDepths.length; i++) {
+	    benchmarkDonation("PriorityScheduler", new PriorityScheduler(),
+			      donationDepths[i]);
+	    benchmarkDonation("LotteryScheduler", new LotteryScheduler(),
+			      donationDepths[i]);
+	    benchmarkDonation("StrideScheduler", new StrideScheduler(),
+			      donationDepths[i]);
+	    benchmarkDonation("FairScheduler", new FairScheduler(),
+			      donationDepths[i]);
+	}
+
+	benchmarkHandoff("PriorityScheduler", new PriorityScheduler(),
+			 numHandoffLocks, handoffDepth);
+	benchmarkHandoff("LotteryScheduler", new LotteryScheduler(),
+			 numHandoffLocks, handoffDepth);
+	benchmarkHandoff("StrideScheduler", new StrideScheduler(),
+			 numHandoffLocks, handoffDepth);
+
+	benchmarkPageFaults(2);
+	benchmarkPageFaults(4);
+
+	if (BenchGrader.getPrivilege() != null) {
+	    benchmarkInterrupts(4);
+	    benchmarkInterrupts(64);
+	}
+
+	if (postOffice != null)
+	    benchmarkPostOffice();
+
+	if (results != null)
+	    results.close();
+    }
+
+    /**
+     * Terminate this kernel, unless the last user process is exiting while a
+     * program benchmark waits for it. Otherwise never returns.
+     */
+    public void terminate() {
+	if (runningProgram) {
+	    runningProgram = false;
+	    programFinished.V();
+	    return;
+	}
+
+	super.terminate();
+    }
+
+    /**
+     * Measure how many user instructions per second the processor executes
+     * while running the specified program to completion.
+     */
+    private void benchmarkProgram(final String name) {
+	measure("Processor.run", name, "instructions/s", programRounds,
+		new Workload() {
+		    long run() {
+			Processor processor = Machine.processor();
+			long start =
+			    processor.readCounter(Processor.counterInstructions);
+
+			runningProgram = true;
+
+			UserProcess process = UserProcess.newUserProcess();
+			Lib.assert(process.execute(name, new String[] { }));
+
+			programFinished.P();
+
+			return processor.readCounter(Processor.counterInstructions)
+			    - start;
+		    }
+		});
+    }
+
+    /**
+     * Measure how many context switches per second the specified number of
+     * threads make, when all they do is yield to each other.
+     */
+    private void benchmarkYield(final int numThreads) {
+	measure("KThread.yield", "" + numThreads, "switches/s", rounds,
+		new Workload() {
+		    long run() {
+			KThread[] threads = new KThread[numThreads];
+			for (int i=0; i<numThreads; i++) {
+			    threads[i] = new KThread(new Runnable() {
+				    public void run() {
+					for (int j=0; j<numYields; j++)
+					    KThread.yield();
+				    }
+				});
+			    threads[i].setName("yield " + i).fork();
+			}
+
+			for (int i=0; i<numThreads; i++)
+			    threads[i].join();
+
+			return (long) numThreads * numYields;
+		    }
+		});
+    }
+
+    /**
+     * Measure how many times per second a ready queue of the specified size
+     * can pick the next thread and put it back.
+     */
+    private void benchmarkScheduler(String name, Scheduler scheduler,
+				    final int numThreads) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	final ThreadQueue queue = scheduler.newThreadQueue(false);
+	for (int i=0; i<numThreads; i++) {
+	    KThread thread = new KThread();
+	    scheduler.setPriority(thread,
+				  PriorityScheduler.priorityDefault +
+				  i % (PriorityScheduler.priorityMaximum -
+				       PriorityScheduler.priorityDefault + 1));
+	    queue.waitForAccess(thread);
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	measure(name + ".nextThread", "" + numThreads, "ops/s", rounds,
+		new Workload() {
+		    long run() {
+			boolean intStatus = Machine.interrupt().disable();
+
+			for (int i=0; i<numSchedulerOps; i++)
+			    queue.waitForAccess(queue.nextThread());
+
+			Machine.interrupt().restore(intStatus);
+
+			return numSchedulerOps;
+		    }
+		});
+    }
+
+    /**
+     * Measure how many times per second the priority of a thread at the end
+     * of a donation chain of the specified depth can be changed. Each thread
+     * in the chain holds one queue and waits on the queue held by the thread
+     * before it, so every change is passed all the way to the first thread.
+     */
+    private void benchmarkDonation(String name, final Scheduler scheduler,
+				   int depth) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread[] threads = new KThread[depth+1];
+	threads[0] = new KThread();
+	for (int i=1; i<=depth; i++) {
+	    ThreadQueue queue = scheduler.newThreadQueue(true);
+	    queue.acquire(threads[i-1]);
+
+	    threads[i] = new KThread();
+	    queue.waitForAccess(threads[i]);
+	}
+
+	final KThread last = threads[depth];
+
+	Machine.interrupt().restore(intStatus);
+
+	measure(name + ".donation", "" + depth, "ops/s", rounds,
+		new Workload() {
+		    long run() {
+			boolean intStatus = Machine.interrupt().disable();
+
+			for (int i=0; i<numSchedulerOps; i++) {
+			    scheduler.setPriority(last,
+						  PriorityScheduler.priorityDefault +
+						  i%2);
+			}
+
+			Machine.interrupt().restore(intStatus);
+
+			return numSchedulerOps;
+		    }
+		});
+    }
+
+    /**
+     * Measure how many times per second a lock can be handed off and back
+     * by a thread that holds the specified number of locks, each with a
+     * thread waiting on it, at the end of a donation chain of the specified
+     * depth. Every handoff changes what the thread holds, and may change the
+     * priority it passes along the chain.
+     */
+    private void benchmarkHandoff(String name, Scheduler scheduler,
+				  int numLocks, int depth) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread[] threads = new KThread[depth+1];
+	threads[0] = new KThread();
+	for (int i=1; i<=depth; i++) {
+	    ThreadQueue queue = scheduler.newThreadQueue(true);
+	    queue.acquire(threads[i-1]);
+
+	    threads[i] = new KThread();
+	    queue.waitForAccess(threads[i]);
+	}
+
+	final KThread holder = threads[depth];
+	final ThreadQueue[] locks = new ThreadQueue[numLocks];
+	for (int i=0; i<numLocks; i++) {
+	    locks[i] = scheduler.newThreadQueue(true);
+	    locks[i].acquire(holder);
+
+	    KThread waiter = new KThread();
+	    scheduler.setPriority(waiter,
+				  PriorityScheduler.priorityDefault +
+				  i % (PriorityScheduler.priorityMaximum -
+				       PriorityScheduler.priorityDefault + 1));
+	    locks[i].waitForAccess(waiter);
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	measure(name + ".handoff", numLocks + "x" + depth, "ops/s", rounds,
+		new Workload() {
+		    long run() {
+			boolean intStatus = Machine.interrupt().disable();
+
+			for (int i=0; i<numSchedulerOps; i++) {
+			    ThreadQueue lock = locks[i % locks.length];
+
+			    KThread waiter = lock.nextThread();
+			    lock.acquire(holder);
+			    lock.waitForAccess(waiter);
+			}
+
+			Machine.interrupt().restore(intStatus);
+
+			return numSchedulerOps;
+		    }
+		});
+    }
+
+    /**
+     * Measure how many page faults per second the virtual memory manager
+     * handles, when touching pages round robin from a working set the
+     * specified number of times larger than physical memory. Every page is
+     * written to, so every fault writes a page out to the page file and
+     * reads another back.
+     */
+    private void benchmarkPageFaults(final int overcommit) {
+	final VirtualMemoryManager manager = VMKernel.virtualMemoryManager;
+	final int numPages = Machine.processor().getNumPhysPages() * overcommit;
+
+	measure("VirtualMemoryManager.fault", "" + overcommit, "faults/s",
+		rounds, new Workload() {
+		    long run() {
+			for (int i=0; i<numFaults; i++) {
+			    int vpn = i % numPages;
+			    boolean newPage = !manager.contains(benchPID, vpn);
+			    int ppn = manager.lockPage(benchPID, vpn, newPage);
+
+			    // as if the page were stored to
+			    manager.getEntry(ppn).dirty = true;
+			    manager.unlockPage(ppn);
+			}
+
+			// a page can be both in memory and in the page file
+			manager.lock();
+			for (int vpn=0; vpn<numPages; vpn++) {
+			    while (manager.contains(benchPID, vpn))
+				manager.freePage(benchPID, vpn);
+			}
+			manager.unlock();
+
+			return numFaults;
+		    }
+		});
+    }
+
+    /**
+     * Measure how many interrupt handlers per second the interrupt
+     * controller invokes, with the specified number of interrupts pending.
+     * Each handler reschedules itself a short, random time later, and
+     * simulated time is advanced by enabling interrupts.
+     */
+    private void benchmarkInterrupts(final int numPending) {
+	final Privilege privilege = BenchGrader.getPrivilege();
+
+	measure("Interrupt.checkIfDue", "" + numPending, "interrupts/s",
+		rounds, new Workload() {
+		    long run() {
+			Rescheduler.numInvoked = 0;
+			Rescheduler.stopped = false;
+
+			boolean intStatus = Machine.interrupt().disable();
+			for (int i=0; i<numPending; i++)
+			    new Rescheduler(privilege).schedule();
+			Machine.interrupt().restore(intStatus);
+
+			for (int i=0; i<numInterruptTicks; i++) {
+			    Machine.interrupt().disable();
+			    Machine.interrupt().enable();
+			}
+
+			long numInvoked = Rescheduler.numInvoked;
+
+			// let the handlers run out, so later rounds start afresh
+			Rescheduler.stopped = true;
+			while (Rescheduler.numPending > 0) {
+			    Machine.interrupt().disable();
+			    Machine.interrupt().enable();
+			}
+
+			return numInvoked;
+		    }
+		});
+    }
+
+    /**
+     * Measure how many messages per second the post office can send to a
+     * server thread on this machine and receive back.
+     */
+    private void benchmarkPostOffice() {
+	KThread server = new KThread(new Runnable() {
+		public void run() { echoServer(); }
+	    });
+	server.setName("echo server").fork();
+
+	final int local = Machine.networkLink().getLinkAddress();
+
+	measure("PostOffice.sendReceive", "" + local, "messages/s", rounds,
+		new Workload() {
+		    long run() {
+			for (int i=0; i<numMessages; i++) {
+			    MailMessage mail;
+			    try {
+				mail = new MailMessage(local, echoPort,
+						       local, replyPort,
+						       new byte[0]);
+			    }
+			    catch (MalformedPacketException e) {
+				Lib.assertNotReached();
+				return 0;
+			    }
+
+			    postOffice.send(mail);
+			    postOffice.receive(replyPort);
+			}
+
+			return numMessages;
+		    }
+		});
+    }
+
+    private void echoServer() {
+	while (true) {
+	    MailMessage mail = postOffice.receive(echoPort);
+
+	    MailMessage reply;
+	    try {
+		reply = new MailMessage(mail.packet.srcLink, mail.srcPort,
+					mail.packet.dstLink, mail.dstPort,
+					mail.contents);
+	    }
+	    catch (MalformedPacketException e) {
+		continue;
+	    }
+
+	    postOffice.send(reply);
+	}
+    }
+
+    /**
+     * Run a workload for <tt>warmupRounds</tt> rounds, and then for the
+     * specified number of rounds, and report the best rate it achieved. A
+     * round repeats the workload until it has taken at least
+     * <tt>minRoundTime</tt> milliseconds.
+     */
+    private void measure(String benchmark, String parameter, String unit,
+			 int measuredRounds, Workload workload) {
+	long best = 0;
+	for (int i=0; i<warmupRounds+measuredRounds; i++) {
+	    long start = System.currentTimeMillis();
+	    long numOps = 0, time;
+
+	    do {
+		numOps += workload.run();
+		time = System.currentTimeMillis() - start;
+	    }
+	    while (time < minRoundTime);
+
+	    if (i >= warmupRounds)
+		best = Math.max(best, numOps * 1000 / time);
+	}
+
+	report(benchmark + "," + parameter + "," + best + "," + unit);
+    }
+
+    private void report(String line) {
+	System.out.println(line);
+
+	if (results != null) {
+	    byte[] bytes = (line + "\n").getBytes();
+	    Lib.assert(results.write(bytes, 0, bytes.length) == bytes.length);
+	}
+    }
+
+    /** A piece of work to measure. */
+    private static abstract class Workload {
+	/**
+	 * Do the work once.
+	 *
+	 * @return	the number of operations performed.
+	 */
+	abstract long run();
+    }
+
+    /** An interrupt handler that keeps rescheduling itself. */
+    private static class Rescheduler implements Runnable {
+	Rescheduler(Privilege privilege) {
+	    this.privilege = privilege;
+	}
+
+	void schedule() {
+	    numPending++;
+	    privilege.interrupt.schedule(Lib.random(maxInterruptDelay) + 1,
+					 "bench", this);
+	}
+
+	public void run() {
+	    numPending--;
+	    numInvoked++;
+
+	    if (!stopped)
+		schedule();
+	}
+
+	private Privilege privilege;
+
+	static long numInvoked;
+	static boolean stopped;
+	/** The number of handlers scheduled but not yet invoked. */
+	static int numPending = 0;
+    }
+
+    private PostOffice postOffice = null;
+    private OpenFile results = null;
+
+    private boolean runningProgram = false;
+    private Semaphore programFinished = null;
+
+    private static final int[] schedulerSizes = { 16, 256, 4096 };
+    private static final int[] donationDepths = { 16, 128 };
+    private static final int numHandoffLocks = 4096;
+    private static final int handoffDepth = 128;
+
+    private static final int warmupRounds = 2;
+    private static final int rounds = 5;
+    private static final int programRounds = 3;
+    private static final long minRoundTime = 200;
+
+    private static final int numYields = 1000;
+    private static final int numSchedulerOps = 10000;
+    private static final int numFaults = 1000;
+    private static final int numInterruptTicks = 10000;
+    private static final int maxInterruptDelay = 8*Stats.KernelTick;
+    private static final int numMessages = 50;
+
+    /** A process ID that no user process will have. */
+    private static final int benchPID = -1;
+
+    private static final int echoPort = 1, replyPort = 0;
+}
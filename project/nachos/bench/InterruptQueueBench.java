@@ -0,0 +1,153 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Compares <tt>InterruptQueue</tt> with the <tt>TreeSet</tt> of pending
+ * interrupt objects that <tt>Interrupt</tt> used before it.
+ *
+ * <p>
+ * Each queue is held at a fixed size while interrupts are removed in order
+ * and rescheduled a short, random time later, the way the timer and the
+ * devices reschedule themselves. Small delays make interrupts due at the same
+ * time common, so the benchmark also checks that both queues remove
+ * interrupts in exactly the same order.
+ *
+ * <p>
+ * Results are printed one per line as
+ * <tt>benchmark,parameter,score,unit</tt>.
+ */
+public class InterruptQueueBench {
+    public static void main(String[] args) {
+	int[] sizes = { 4, 64, 1024 };
+
+	System.out.println("benchmark,parameter,score,unit");
+
+	for (int i=0; i<sizes.length; i++) {
+	    Lib.assert(checksum(true, sizes[i], numOps) ==
+		       checksum(false, sizes[i], numOps));
+
+	    report("InterruptQueue.treeSet", sizes[i], false);
+	    report("InterruptQueue.heap", sizes[i], true);
+	}
+    }
+
+    private static void report(String name, int size, boolean heap) {
+	for (int i=0; i<warmupRounds; i++)
+	    checksum(heap, size, numOps);
+
+	long best = Long.MAX_VALUE;
+	for (int i=0; i<measuredRounds; i++) {
+	    long start = System.currentTimeMillis();
+	    checksum(heap, size, numOps);
+	    best = Math.min(best, System.currentTimeMillis() - start);
+	}
+
+	System.out.println(name + "," + size + "," +
+			   (numOps * 1000L / Math.max(best, 1)) + ",ops/s");
+    }
+
+    /**
+     * Run the benchmark workload on one kind of queue, and return a checksum
+     * of the order in which interrupts were removed.
+     */
+    private static long checksum(boolean heap, int size, int ops) {
+	Random random = new Random(seed);
+	long checksum = 0;
+
+	InterruptQueue queue = new InterruptQueue();
+	TreeSet set = new TreeSet();
+	long numAdded = 0;
+
+	for (int i=0; i<size; i++) {
+	    long time = random.nextInt(maxDelay) + 1;
+	    Runnable handler = handlers[i % handlers.length];
+
+	    if (heap)
+		queue.add(time, "bench", handler);
+	    else
+		set.add(new PendingInterrupt(time, numAdded++, handler));
+	}
+
+	for (int i=0; i<ops; i++) {
+	    long time;
+	    Runnable handler;
+
+	    if (heap) {
+		time = queue.firstTime();
+		handler = queue.removeFirst();
+	    }
+	    else {
+		PendingInterrupt first = (PendingInterrupt) set.first();
+		set.remove(first);
+		time = first.time;
+		handler = first.handler;
+	    }
+
+	    checksum = checksum*31 + time*7 + ((Handler) handler).id;
+
+	    time += random.nextInt(maxDelay) + 1;
+
+	    if (heap)
+		queue.add(time, "bench", handler);
+	    else
+		set.add(new PendingInterrupt(time, numAdded++, handler));
+	}
+
+	return checksum;
+    }
+
+    /** The pending interrupt class <tt>Interrupt</tt> used to keep. */
+    private static class PendingInterrupt implements Comparable {
+	PendingInterrupt(long time, long id, Runnable handler) {
+	    this.time = time;
+	    this.id = id;
+	    this.handler = handler;
+	}
+
+	public int compareTo(Object o) {
+	    PendingInterrupt toOccur = (PendingInterrupt) o;
+
+	    if (time < toOccur.time)
+		return -1;
+	    else if (time > toOccur.time)
+		return 1;
+	    else if (id < toOccur.id)
+		return -1;
+	    else if (id > toOccur.id)
+		return 1;
+	    else
+		return 0;
+	}
+
+	long time;
+	long id;
+	Runnable handler;
+    }
+
+    private static class Handler implements Runnable {
+	Handler(int id) {
+	    this.id = id;
+	}
+
+	public void run() {
+	}
+
+	int id;
+    }
+
+    private static final long seed = 162;
+    private static final int maxDelay = 8;
+    private static final int numOps = 2000000;
+    private static final int warmupRounds = 3;
+    private static final int measuredRounds = 5;
+
+    private static final Runnable[] handlers = new Runnable[1024];
+    static {
+	for (int i=0; i<handlers.length; i++)
+	    handlers[i] = new Handler(i);
+    }
+}
@@ -0,0 +1,67 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A set-associative cache of physical memory, with least recently used
+ * replacement. Only the tags are simulated: data is always read from and
+ * written to main memory, so the cache decides how long an access takes and
+ * never what it returns. Stores allocate lines just like loads.
+ */
+final class Cache {
+    /**
+     * Allocate a new, empty cache.
+     *
+     * @param	size		the capacity of the cache in bytes.
+     * @param	lineSize	the size of a line in bytes, a power of two.
+     * @param	associativity	the number of lines in each set.
+     */
+    Cache(int size, int lineSize, int associativity) {
+	Lib.assert(size > 0 && lineSize > 0 && associativity > 0);
+	Lib.assert((lineSize & (lineSize-1)) == 0);
+	Lib.assert(size % (lineSize*associativity) == 0);
+
+	while ((1 << lineShift) < lineSize)
+	    lineShift++;
+
+	ways = associativity;
+	numSets = size / (lineSize*associativity);
+
+	tags = new int[numSets*ways];
+	for (int i=0; i<tags.length; i++)
+	    tags[i] = -1;
+    }
+
+    /**
+     * Access the line containing the specified physical address, making it
+     * the most recently used line in its set.
+     *
+     * @param	paddr	the physical address accessed.
+     * @return	<tt>true</tt> if the line was already in the cache.
+     */
+    boolean access(int paddr) {
+	int line = paddr >>> lineShift;
+	int first = (line % numSets) * ways;
+
+	// each set is kept in order from most to least recently used
+	if (tags[first] == line)
+	    return true;
+
+	int i = first+1;
+	while (i < first+ways && tags[i] != line)
+	    i++;
+
+	boolean hit = (i < first+ways);
+	if (!hit)
+	    i--;
+
+	System.arraycopy(tags, first, tags, first+1, i-first);
+	tags[first] = line;
+
+	return hit;
+    }
+
+    private int lineShift = 0;
+    private int ways, numSets;
+    private int[] tags;
+}
@@ -3,6 +3,7 @@
 package nachos.machine;
 
 import java.io.EOFException;
+import java.util.Vector;
 
 /**
  * A COFF (common object file format) loader.
@@ -72,6 +73,11 @@ public final class Coff {
 		throw e;
 	    }
 	}
+
+	// the symbol table is only read to name procedures in a profile
+	symbolPointer = Lib.bytesToInt(headers, 8);
+	if (Machine.processor() != null)
+	    Machine.processor().addExecutable(this);
     }
 
     /**
@@ -119,14 +125,141 @@ public final class Coff {
 	sections = null;
     }
 
+    /**
+     * Read the names and addresses of the procedures in the executable from
+     * its ECOFF symbol table. This is only done on request, since reading the
+     * symbol table takes simulated time. An executable without a symbol
+     * table, or with one that cannot be understood, has no procedures.
+     */
+    void readProcedures() {
+	procedureNames = new String[0];
+	procedureAddresses = new int[0];
+
+	byte[] header = readSymbolTable(symbolPointer, symbolicHeaderLength);
+	if (header == null || Lib.bytesToUnsignedShort(header, 0) != 0x7009) {
+	    Lib.debug(dbgCoff, "\tno symbol table");
+	    return;
+	}
+
+	int numSymbols = Lib.bytesToInt(header, 4+4*7);
+	int numStringBytes = Lib.bytesToInt(header, 4+4*13);
+	int numFiles = Lib.bytesToInt(header, 4+4*17);
+
+	byte[] symbols = readSymbolTable(Lib.bytesToInt(header, 4+4*8),
+					 numSymbols*symbolLength);
+	byte[] strings = readSymbolTable(Lib.bytesToInt(header, 4+4*14),
+					 numStringBytes);
+	byte[] files = readSymbolTable(Lib.bytesToInt(header, 4+4*18),
+				       numFiles*fileDescriptorLength);
+	if (symbols == null || strings == null || files == null) {
+	    Lib.debug(dbgCoff, "\tcorrupt symbol table");
+	    return;
+	}
+
+	Vector names = new Vector();
+	Vector addresses = new Vector();
+
+	// local symbols are numbered within each file descriptor
+	for (int f=0; f<numFiles; f++) {
+	    int fileOffset = f*fileDescriptorLength;
+	    int stringBase = Lib.bytesToInt(files, fileOffset+8);
+	    int symbolBase = Lib.bytesToInt(files, fileOffset+16);
+	    int fileSymbols = Lib.bytesToInt(files, fileOffset+20);
+
+	    for (int i=0; i<fileSymbols; i++) {
+		int entry = (symbolBase+i) * symbolLength;
+		if (entry < 0 || entry+symbolLength > symbols.length)
+		    break;
+
+		int type = Lib.bytesToInt(symbols, entry+8) & 0x3F;
+		if (type != stProc && type != stStaticProc)
+		    continue;
+
+		int name = stringBase + Lib.bytesToInt(symbols, entry);
+		if (name < 0 || name >= strings.length)
+		    continue;
+
+		names.add(Lib.bytesToString(strings, name,
+					    strings.length-name));
+		addresses.add(new Integer(Lib.bytesToInt(symbols, entry+4)));
+	    }
+	}
+
+	procedureNames = new String[names.size()];
+	procedureAddresses = new int[names.size()];
+	for (int i=0; i<procedureNames.length; i++) {
+	    procedureNames[i] = (String) names.elementAt(i);
+	    procedureAddresses[i] =
+		((Integer) addresses.elementAt(i)).intValue();
+	}
+
+	Lib.debug(dbgCoff, "\tread " + procedureNames.length + " procedures");
+    }
+
+    private byte[] readSymbolTable(int position, int length) {
+	if (position <= 0 || length < 0 || length > file.length() - position)
+	    return null;
+
+	byte[] data = new byte[length];
+	if (file.read(position, data, 0, length) != length)
+	    return null;
+
+	return data;
+    }
+
+    /**
+     * Return the number of procedures read by <tt>readProcedures()</tt>.
+     *
+     * @return	the number of procedures in the executable.
+     */
+    int getNumProcedures() {
+	Lib.assert(procedureNames != null);
+
+	return procedureNames.length;
+    }
+
+    /**
+     * Return the name of the specified procedure.
+     *
+     * @param	procedure	the procedure to select.
+     * @return	the name of the procedure.
+     */
+    String getProcedureName(int procedure) {
+	Lib.assert(procedure >= 0 && procedure < getNumProcedures());
+
+	return procedureNames[procedure];
+    }
+
+    /**
+     * Return the virtual address of the first instruction of the specified
+     * procedure.
+     *
+     * @param	procedure	the procedure to select.
+     * @return	the address of the procedure.
+     */
+    int getProcedureAddress(int procedure) {
+	Lib.assert(procedure >= 0 && procedure < getNumProcedures());
+
+	return procedureAddresses[procedure];
+    }
+
     private OpenFile file;
 
     private int magic, numSections, optionalHeaderLength, flags, entryPoint;
 
     private CoffSection sections[] = null;
 
+    private int symbolPointer;
+    private String[] procedureNames = null;
+    private int[] procedureAddresses = null;
+
     private static final int headerLength = 20;
     private static final int aoutHeaderLength = 28;
 
+    private static final int symbolicHeaderLength = 96;
+    private static final int fileDescriptorLength = 72;
+    private static final int symbolLength = 12;
+    private static final int stProc = 6, stStaticProc = 14;
+
     private static final char dbgCoff = 'c';
 }
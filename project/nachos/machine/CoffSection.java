@@ -3,7 +3,6 @@
 package nachos.machine;
 
 import java.io.EOFException;
-import java.util.Arrays;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -152,7 +151,7 @@ public class CoffSection {
 	Lib.assert(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 	    
 	int pageSize = Processor.pageSize;
-	byte[] memory = Machine.processor().getMemory();
+	Processor processor = Machine.processor();
 	int paddr = ppn*pageSize;
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
@@ -164,9 +163,11 @@ public class CoffSection {
 	else
 	    initlen = pageSize;
 
-	Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	long startTime = Machine.timer().getTime();
+	Lib.assert(processor.loadMemory(file, faddr, paddr, initlen) == initlen);
+	Lib.assert(Machine.timer().getTime() > startTime);
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	processor.clearMemory(paddr+initlen, pageSize-initlen);
     }
 
     private OpenFile file;
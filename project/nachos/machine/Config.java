@@ -130,6 +130,21 @@ public final class Config {
 	}
     }
 
+    /**
+     * Get the value of an integer key in <tt>nachos.conf</tt>, returning the
+     * specified default if the key is not present.
+     *
+     * @param	key		the key to look up.
+     * @param	defaultValue	the value to return if the key is missing.
+     * @return	the value of the specified key, or <tt>defaultValue</tt>.
+     */
+    public static int getInteger(String key, int defaultValue) {
+	if (getString(key) == null)
+	    return defaultValue;
+
+	return getInteger(key);
+    }
+
     /**
      * Get the value of a double key in <tt>nachos.conf</tt>.
      *
@@ -178,6 +193,21 @@ public final class Config {
 	}
     }
 
+    /**
+     * Get the value of a boolean key in <tt>nachos.conf</tt>, returning the
+     * specified default if the key is not present.
+     *
+     * @param	key		the key to look up.
+     * @param	defaultValue	the value to return if the key is missing.
+     * @return	the value of the specified key, or <tt>defaultValue</tt>.
+     */
+    public static boolean getBoolean(String key, boolean defaultValue) {
+	if (getString(key) == null)
+	    return defaultValue;
+
+	return getBoolean(key);
+    }
+
     private static boolean loaded = false;
     private static String configFile;
     private static HashMap config;
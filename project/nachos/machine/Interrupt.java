@@ -4,10 +4,6 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
-
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
  * hardware provides a method (<tt>setStatus()</tt>) to enable or disable
@@ -53,7 +49,7 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet();
+	pending = new InterruptQueue();
     }
 
     /**
@@ -120,17 +116,45 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Enable interrupts and wait for the next one, when there is nothing else
+     * to do. Rather than advance simulated time a tick at a time until the
+     * first pending interrupt is due, jump straight to it and invoke its
+     * handler. The time skipped is counted as idle time, not kernel time.
+     *
+     * <p>
+     * Interrupts must be disabled, so that nothing can become ready to run
+     * between the caller's decision to idle and the jump. They are enabled
+     * when this method returns.
+     */
+    public void idle() {
+	Lib.assert(disabled());
+
+	// enabling interrupts ticks the rest of the way
+	Stats stats = privilege.stats;
+	if (!pending.isEmpty()) {
+	    long skip = pending.firstTime() - stats.totalTicks - Stats.KernelTick;
+	    if (skip > 0) {
+		Lib.debug(dbgInt, "Idling for " + skip + " ticks");
+
+		stats.idleTicks += skip;
+		stats.totalTicks += skip;
+	    }
+	}
+
+	setStatus(true);
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assert(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
 		  " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	pending.add(time, type, handler);
     }
 
     private void tick(boolean inKernelMode) {
@@ -145,14 +169,40 @@ public final class Interrupt {
 	    stats.totalTicks += Stats.UserTick;
 	}
 
+	endTick();
+    }
+
+    private void tick(int numInstructions) {
+	Lib.assert(numInstructions > 0);
+	
+	Stats stats = privilege.stats;
+
+	stats.userTicks += (long) numInstructions * Stats.UserTick;
+	stats.totalTicks += (long) numInstructions * Stats.UserTick;
+
+	endTick();
+    }
+
+    private void endTick() {
 	if (Lib.test(dbgInt))
-	    System.out.println("== Tick " + stats.totalTicks + " ==");
+	    System.out.println("== Tick " + privilege.stats.totalTicks + " ==");
 
 	enabled = false;
 	checkIfDue();
 	enabled = true;
     }
 
+    private long getHorizon() {
+	// the next tick re-enables interrupts, and tracing prints every tick
+	if (!enabled || Lib.test(dbgInt))
+	    return 0;
+
+	if (pending.isEmpty())
+	    return Long.MAX_VALUE;
+
+	return pending.firstTime();
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -164,24 +214,21 @@ public final class Interrupt {
 	if (pending.isEmpty())
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (pending.firstTime() > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
-
-	    Lib.assert(next.time <= time);
+	while (!pending.isEmpty() && pending.firstTime() <= time) {
+	    String type = pending.firstType();
+	    Runnable handler = pending.removeFirst();
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    Lib.debug(dbgInt, "  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,52 +239,19 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
+	for (InterruptQueue q=new InterruptQueue(pending); !q.isEmpty(); ) {
+	    System.out.println("  " + q.firstType() +
+			       ", scheduled at " + q.firstTime());
+	    q.removeFirst();
 	}
 
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
-	}
-
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
-
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
-	}
-
-	long time;
-	String type;
-	Runnable handler;
-
-	private long id;
-    }
-    
-    private long numPendingInterruptsCreated = 0;
-
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet pending;
+    private InterruptQueue pending;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +263,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void tick(int numInstructions) {
+	    Interrupt.this.tick(numInstructions);
+	}
+
+	public long getHorizon() {
+	    return Interrupt.this.getHorizon();
+	}
     }
 }
@@ -0,0 +1,211 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A priority queue of pending interrupts, ordered by the time each is
+ * scheduled to occur. Interrupts scheduled for the same time are ordered by
+ * when they were added, so the queue always removes them in the same order as
+ * a <tt>TreeSet</tt> ordered by (time, sequence number) would.
+ *
+ * <p>
+ * The queue is a binary heap kept in parallel arrays. Removing an interrupt
+ * frees its slot for the next one added, so devices that reschedule
+ * themselves constantly do not allocate anything once the arrays are large
+ * enough.
+ */
+public final class InterruptQueue {
+    /**
+     * Allocate a new, empty interrupt queue.
+     */
+    public InterruptQueue() {
+	this(16);
+    }
+
+    /**
+     * Allocate a new, empty interrupt queue with room for the specified
+     * number of interrupts. The queue grows if more are added.
+     *
+     * @param	capacity	the initial capacity.
+     */
+    public InterruptQueue(int capacity) {
+	Lib.assert(capacity > 0);
+
+	times = new long[capacity];
+	ids = new long[capacity];
+	types = new String[capacity];
+	handlers = new Runnable[capacity];
+    }
+
+    /**
+     * Allocate a new interrupt queue containing the same interrupts as an
+     * existing one.
+     *
+     * @param	queue	the queue to copy.
+     */
+    public InterruptQueue(InterruptQueue queue) {
+	this(queue.times.length);
+
+	System.arraycopy(queue.times, 0, times, 0, queue.size);
+	System.arraycopy(queue.ids, 0, ids, 0, queue.size);
+	System.arraycopy(queue.types, 0, types, 0, queue.size);
+	System.arraycopy(queue.handlers, 0, handlers, 0, queue.size);
+	size = queue.size;
+	numAdded = queue.numAdded;
+    }
+
+    /**
+     * Add an interrupt to the queue.
+     *
+     * @param	time	the time the interrupt should occur.
+     * @param	type	a name for the type of interrupt.
+     * @param	handler	the interrupt handler to call.
+     */
+    public void add(long time, String type, Runnable handler) {
+	if (size == times.length)
+	    grow();
+
+	long id = numAdded++;
+
+	// sift the hole up from the end until the parent comes first
+	int i = size++;
+	while (i > 0) {
+	    int parent = (i-1) / 2;
+	    if (!before(time, id, times[parent], ids[parent]))
+		break;
+
+	    move(parent, i);
+	    i = parent;
+	}
+
+	set(i, time, id, type, handler);
+    }
+
+    /**
+     * Test whether the queue is empty.
+     *
+     * @return	<tt>true</tt> if there are no pending interrupts.
+     */
+    public boolean isEmpty() {
+	return size == 0;
+    }
+
+    /**
+     * Return the number of pending interrupts.
+     *
+     * @return	the number of interrupts in the queue.
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Return the time of the first interrupt in the queue.
+     *
+     * @return	the time the first interrupt should occur.
+     */
+    public long firstTime() {
+	Lib.assert(size > 0);
+	return times[0];
+    }
+
+    /**
+     * Return the type of the first interrupt in the queue.
+     *
+     * @return	the name of the first interrupt's type.
+     */
+    public String firstType() {
+	Lib.assert(size > 0);
+	return types[0];
+    }
+
+    /**
+     * Remove the first interrupt from the queue.
+     *
+     * @return	the handler of the interrupt that was removed.
+     */
+    public Runnable removeFirst() {
+	Lib.assert(size > 0);
+
+	Runnable handler = handlers[0];
+
+	int last = --size;
+	long time = times[last];
+	long id = ids[last];
+	String type = types[last];
+	Runnable lastHandler = handlers[last];
+	types[last] = null;
+	handlers[last] = null;
+
+	if (last == 0)
+	    return handler;
+
+	// sift the last interrupt down from the root into the hole
+	int i = 0;
+	while (true) {
+	    int child = 2*i + 1;
+	    if (child >= last)
+		break;
+
+	    if (child+1 < last &&
+		before(times[child+1], ids[child+1], times[child], ids[child]))
+		child++;
+
+	    if (!before(times[child], ids[child], time, id))
+		break;
+
+	    move(child, i);
+	    i = child;
+	}
+
+	set(i, time, id, type, lastHandler);
+
+	return handler;
+    }
+
+    private static boolean before(long time1, long id1, long time2, long id2) {
+	return time1 < time2 || (time1 == time2 && id1 < id2);
+    }
+
+    private void move(int from, int to) {
+	times[to] = times[from];
+	ids[to] = ids[from];
+	types[to] = types[from];
+	handlers[to] = handlers[from];
+    }
+
+    private void set(int i, long time, long id, String type,
+		     Runnable handler) {
+	times[i] = time;
+	ids[i] = id;
+	types[i] = type;
+	handlers[i] = handler;
+    }
+
+    private void grow() {
+	int capacity = times.length * 2;
+
+	long[] newTimes = new long[capacity];
+	long[] newIds = new long[capacity];
+	String[] newTypes = new String[capacity];
+	Runnable[] newHandlers = new Runnable[capacity];
+
+	System.arraycopy(times, 0, newTimes, 0, size);
+	System.arraycopy(ids, 0, newIds, 0, size);
+	System.arraycopy(types, 0, newTypes, 0, size);
+	System.arraycopy(handlers, 0, newHandlers, 0, size);
+
+	times = newTimes;
+	ids = newIds;
+	types = newTypes;
+	handlers = newHandlers;
+    }
+
+    private long[] times;
+    private long[] ids;
+    private String[] types;
+    private Runnable[] handlers;
+    private int size = 0;
+
+    private long numAdded = 0;
+}
@@ -5,7 +5,13 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.ag.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -42,6 +48,9 @@ public final class Machine {
 	TCB.givePrivilege(privilege);
 	privilege.stats = stats;
 
+	if (checkpointName != null)
+	    readCheckpoint();
+
 	securityManager.enable();
 	createDevices();
 	checkUserClasses();
@@ -86,10 +95,146 @@ public final class Machine {
      */
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
+	if (processor != null)
+	    processor.writeProfile();
 	stats.print();
 	terminate();
     }
 
+    /**
+     * Write a checkpoint of the machine to the specified file in the test
+     * directory. The checkpoint holds the statistics of the machine, which
+     * include the simulated time, followed by whatever state the kernel needs
+     * to resume. Starting Nachos with <tt>-r <i>name</i></tt> restores the
+     * statistics before any device is created, and makes the kernel state
+     * available through <tt>getCheckpointState()</tt>.
+     *
+     * <p>
+     * Pending interrupts are not saved, since their handlers belong to the
+     * devices and kernel that scheduled them. Each device schedules its own
+     * interrupts again when it is created.
+     *
+     * @param	name		the name of the checkpoint file.
+     * @param	kernelState	the kernel state to save.
+     * @return	<tt>true</tt> if the checkpoint was written.
+     */
+    public static boolean checkpoint(String name, byte[] kernelState) {
+	File file = new File(testDirectory, name);
+	if (!testDirectory.equals(file.getParentFile()))
+	    return false;
+
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	try {
+	    DataOutputStream out = new DataOutputStream(bytes);
+	    out.writeInt(checkpointMagic);
+	    out.writeInt(checkpointVersion);
+	    stats.write(out);
+	    out.writeInt(kernelState.length);
+	    out.write(kernelState);
+	    out.close();
+	}
+	catch (IOException e) {
+	    return false;
+	}
+
+	CheckpointWriter writer =
+	    new CheckpointWriter(file, bytes.toByteArray());
+	privilege.doPrivileged(writer);
+	if (writer.error != null) {
+	    System.out.println("cannot write checkpoint " + name + ": "
+			       + writer.error);
+	    return false;
+	}
+	return true;
+    }
+
+    private static class CheckpointWriter implements Runnable {
+	CheckpointWriter(File file, byte[] contents) {
+	    this.file = file;
+	    this.contents = contents;
+	}
+
+	public void run() {
+	    FileOutputStream out = null;
+	    try {
+		out = new FileOutputStream(file);
+		out.write(contents);
+		out.close();
+		out = null;
+	    }
+	    catch (IOException e) {
+		error = e;
+	    }
+	    finally {
+		if (out != null) {
+		    try {
+			out.close();
+		    }
+		    catch (IOException e) {
+		    }
+		}
+	    }
+	}
+
+	/** Why the checkpoint could not be written, if it could not. */
+	IOException error = null;
+	private File file;
+	private byte[] contents;
+    }
+
+    private static void readCheckpoint() {
+	try {
+	    DataInputStream in = new DataInputStream(
+		new FileInputStream(new File(testDirectory, checkpointName)));
+	    if (in.readInt() != checkpointMagic) {
+		System.out.println("\n" + checkpointName
+				   + " is not a checkpoint");
+		System.exit(1);
+	    }
+
+	    int version = in.readInt();
+	    if (version != checkpointVersion) {
+		System.out.println("\ncheckpoint " + checkpointName
+				   + " has format version " + version
+				   + ", expected " + checkpointVersion);
+		System.exit(1);
+	    }
+
+	    stats.read(in);
+	    checkpointState = new byte[in.readInt()];
+	    in.readFully(checkpointState);
+	    in.close();
+	}
+	catch (IOException e) {
+	    System.out.println("\ncannot read checkpoint " + checkpointName);
+	    System.exit(1);
+	}
+    }
+
+    /**
+     * Return the kernel state saved in the checkpoint that Nachos was
+     * restored from, or <tt>null</tt> if Nachos was not started with
+     * <tt>-r</tt>. A kernel should resume from this state instead of running
+     * its shell program.
+     *
+     * @return	the kernel state passed to <tt>checkpoint()</tt>.
+     */
+    public static byte[] getCheckpointState() {
+	return checkpointState;
+    }
+
+    private static String checkpointName = null;
+    private static byte[] checkpointState = null;
+    private static final int checkpointMagic = 0x4E414348;
+    /**
+     * The version of the checkpoint format, which must change whenever
+     * <tt>Stats.write()</tt> does. Version 5 holds the total, kernel, user
+     * and idle ticks, the disk, console, page fault and network counts, and
+     * the 64-bit TLB, instruction, branch, exception and cache counters,
+     * followed by the kernel state.
+     */
+    private static final int checkpointVersion = 5;
+
     private static void processArgs() {
 	for (int i=0; i<args.length; ) {
 	    String arg = args[i++];
@@ -114,6 +259,10 @@ public final class Machine {
 		else if (arg.equals("-x")) {
 		    Lib.assert(i < args.length);
 		    shellProgramName = args[i++];		    
+		}
+		else if (arg.equals("-r")) {
+		    Lib.assert(i < args.length);
+		    checkpointName = args[i++];
 		}		    
 		else if (arg.equals("-z")) {
 		    System.out.print(copyright);
@@ -401,6 +550,10 @@ public final class Machine {
 	"\t\tinstead of the value of the configuration variable\n" +
 	"\t\tKernel.shellProgram\n" +
 	"\n" +
+	"\t-r <checkpoint>\n" +
+	"\t\tResume from a checkpoint file in the test directory, instead\n" +
+	"\t\tof running the shell program\n" +
+	"\n" +
 	"\t-z\n" +
 	"\t\tprint the copyright message\n" +
 	"\n" +
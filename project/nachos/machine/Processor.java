@@ -4,6 +4,13 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -33,6 +40,7 @@ public final class Processor {
 
 	this.privilege = privilege;
 	privilege.processor = new ProcessorPrivilege();
+	stats = privilege.stats;
 
 	usingTLB = Config.getBoolean("Processor.usingTLB");
 	
@@ -41,16 +49,90 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	Lib.assert(numPhysPages > 0 &&
+		   numPhysPages <= Integer.MAX_VALUE / pageSize);
+	memory = allocateMemory(pageSize * numPhysPages);
+	memory.order(ByteOrder.LITTLE_ENDIAN);
+	decodeCache = new DecodedInstruction[numPhysPages][];
+
+	// translated blocks would hide the per-instruction debug output
+	translateBlocks = Config.getBoolean("Processor.translateBlocks", false)
+	    && !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble)
+	    && !Lib.test(dbgFullDisassemble);
+	if (translateBlocks) {
+	    blockThreshold = Config.getInteger("Processor.blockThreshold",
+					       defaultBlockThreshold);
+	    blockPages = new boolean[numPhysPages];
+	}
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", defaultTLBSize);
+	    tlbWays = Config.getInteger("Processor.tlbAssociativity", tlbSize);
+	    Lib.assert(tlbSize > 0 && tlbWays > 0 && tlbSize % tlbWays == 0);
+	    tlbSets = tlbSize / tlbWays;
+
+	    String replacement = Config.getString("Processor.tlbReplacement");
+	    if (replacement == null || replacement.equals("random"))
+		tlbReplacement = replacementRandom;
+	    else if (replacement.equals("fifo"))
+		tlbReplacement = replacementFIFO;
+	    else if (replacement.equals("lru"))
+		tlbReplacement = replacementLRU;
+	    else
+		Lib.assertNotReached();
+	    tlbStamps = new long[tlbSize];
+
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    // keep the counts restored from a checkpoint of the same TLB
+	    if (stats.tlbSetHits == null || stats.tlbSetHits.length != tlbSets) {
+		stats.tlbSetHits = new long[tlbSets];
+		stats.tlbSetMisses = new long[tlbSets];
+		stats.tlbSetConflictMisses = new long[tlbSets];
+	    }
+
+	    if (tlbSets > 1)
+		shadowTLB = new ShadowTLB(tlbSize);
+
+	    int buckets = 16;
+	    while (buckets < tlbSize*4)
+		buckets *= 2;
+	    tlbHints = new int[buckets];
+	    for (int i=0; i<buckets; i++)
+		tlbHints[i] = -1;
 	}
 	else {
 	    translations = null;
 	}		
+
+	traceMemory = Lib.test(dbgProcessor);
+
+	if (Config.getBoolean("Processor.cache", false)) {
+	    int size = Config.getInteger("Processor.cacheSize",
+					 defaultCacheSize);
+	    int lineSize = Config.getInteger("Processor.cacheLineSize",
+					     defaultCacheLineSize);
+	    int ways = Config.getInteger("Processor.cacheAssociativity",
+					 defaultCacheAssociativity);
+	    int penalty = Config.getInteger("Processor.cacheMissPenalty",
+					    defaultCacheMissPenalty);
+	    Lib.assert(penalty >= 0);
+
+	    instructionCache = new Cache(size, lineSize, ways);
+	    dataCache = new Cache(size, lineSize, ways);
+	    cacheMissStall = (penalty + Stats.UserTick - 1) / Stats.UserTick;
+	}
+
+	if (stats.numExceptions == null ||
+	    stats.numExceptions.length != exceptionNames.length)
+	    stats.numExceptions = new long[exceptionNames.length];
+
+	if (Config.getBoolean("Processor.profile", false)) {
+	    String name = Config.getString("Processor.profileFile");
+	    profiler = new Profiler(name != null ? name : "nachos.prof");
+	}
     }
 
     /**
@@ -67,6 +149,118 @@ public final class Processor {
 	this.exceptionHandler = exceptionHandler;
     }
     
+    /**
+     * Allocate physical memory from the backing store selected by
+     * <tt>Processor.physicalMemory</tt>: <tt>heap</tt> (the default) for a
+     * Java array, <tt>direct</tt> for a buffer outside the Java heap, or
+     * <tt>mapped</tt> for a buffer mapped from the file named by
+     * <tt>Processor.memoryFile</tt>.
+     *
+     * @param	size	the size of physical memory in bytes.
+     * @return	a buffer containing physical memory, filled with zeros.
+     */
+    private ByteBuffer allocateMemory(int size) {
+	String backing = Config.getString("Processor.physicalMemory");
+	if (backing == null || backing.equals("heap")) {
+	    mainMemory = new byte[size];
+	    return ByteBuffer.wrap(mainMemory);
+	}
+	else if (backing.equals("direct")) {
+	    return ByteBuffer.allocateDirect(size);
+	}
+	else if (backing.equals("mapped")) {
+	    String name = Config.getString("Processor.memoryFile");
+	    Lib.assert(name != null);
+
+	    MemoryMapper mapper = new MemoryMapper(name, size);
+	    privilege.doPrivileged(mapper);
+	    if (mapper.buffer == null) {
+		System.out.println("\ncannot map physical memory to " + name
+				   + ": " + mapper.error);
+		privilege.exit(1);
+	    }
+	    return mapper.buffer;
+	}
+
+	Lib.assertNotReached();
+	return null;
+    }
+
+    private class MemoryMapper implements Runnable {
+	MemoryMapper(String name, int size) {
+	    this.name = name;
+	    this.size = size;
+	}
+
+	public void run() {
+	    RandomAccessFile file = null;
+	    try {
+		file = new RandomAccessFile(name, "rw");
+
+		// truncate first so memory starts out zeroed, like an array
+		file.setLength(0);
+		file.setLength(size);
+
+		// the mapping stays valid after the file is closed
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					       0, size);
+	    }
+	    catch (IOException e) {
+		error = e;
+	    }
+	    finally {
+		if (file != null) {
+		    try {
+			file.close();
+		    }
+		    catch (IOException e) {
+		    }
+		}
+	    }
+	}
+
+	ByteBuffer buffer = null;
+	/** Why the file could not be mapped, if it could not. */
+	IOException error = null;
+
+	private String name;
+	private int size;
+    }
+
+    /**
+     * Called by <tt>Coff</tt> when an executable is loaded, so that the
+     * profiler can name the sections and procedures it contains.
+     *
+     * @param	coff	the executable that was loaded.
+     */
+    void addExecutable(Coff coff) {
+	if (profiler != null)
+	    profiler.addExecutable(coff);
+    }
+
+    /**
+     * Write the instruction profile, if profiling is enabled. Called by
+     * <tt>Machine.halt()</tt>.
+     */
+    void writeProfile() {
+	if (profiler == null)
+	    return;
+
+	ProfileWriter writer = new ProfileWriter();
+	privilege.doPrivileged(writer);
+
+	if (!writer.successful)
+	    System.out.println("Could not write profile");
+    }
+
+    private class ProfileWriter implements Runnable {
+	public void run() {
+	    successful = profiler.write();
+	}
+
+	boolean successful = false;
+    }
+
     /**
      * Start executing instructions at the current PC. Never returns.
      */
@@ -76,16 +270,276 @@ public final class Processor {
 	registers[regNextPC] = registers[regPC] + 4;
 
 	Instruction inst = new Instruction();
+
+	startBatch();
 	
 	while (true) {
+	    int pc = registers[regPC];
+	    int epoch = blockEpoch;
+	    
 	    try {
 		inst.run();
+
+		if (profiler != null)
+		    inst.profile(pc);
+	    }
+	    catch (MipsException e) {
+		inst.block = null;
+		if (inst.fetched)
+		    inst.latchRestart(e, pc, inst.fetchPaddr, inst.fetchSlot);
+		inst.retireSyscall(e, pc);
+		endBatch();
+		e.handle();
+		startBatch();
+	    }
+
+	    tick();
+
+	    if (inst.block != null)
+		runBlock(inst, pc, epoch);
+	}
+    }
+
+    /**
+     * Run the rest of a translated block whose first instruction, at
+     * <i>pc</i>, has just been executed. Instructions after the first are not
+     * fetched through <tt>translate()</tt>; this is safe as long as no kernel
+     * code has run since the block was entered, and no user store has hit a
+     * page containing translated code, so the block is abandoned as soon as
+     * <tt>blockEpoch</tt> changes. It is also abandoned if control leaves the
+     * block, so it is never wrong for a block to run past a branch.
+     *
+     * @param	inst	the instruction executing in the current thread.
+     * @param	pc	the virtual address of the first instruction.
+     * @param	epoch	the value of <tt>blockEpoch</tt> before the first
+     *			instruction was executed.
+     */
+    private void runBlock(Instruction inst, int pc, int epoch) {
+	DecodedInstruction[] code = inst.block.code;
+	inst.block = null;
+
+	// every fetch in the block is a hit on the TLB entry the first used
+	int vpn = pageFromAddress(pc);
+	int slot = inst.fetchSlot;
+	int paddr = inst.fetchPaddr;
+
+	for (int i=1; i<code.length; i++) {
+	    if (blockEpoch != epoch || registers[regPC] != pc + i*4)
+		return;
+
+	    if (usingTLB) {
+		if (shadowTLB != null)
+		    shadowTLB.touch(vpn);
+		recordTLBHit(slot);
+	    }
+
+	    if (instructionCache != null)
+		accessInstructionCache(paddr + i*4);
+
+	    try {
+		inst.run(code[i]);
+
+		if (profiler != null)
+		    inst.profile(pc + i*4);
 	    }
 	    catch (MipsException e) {
+		inst.latchRestart(e, pc + i*4, paddr + i*4, slot);
+		inst.retireSyscall(e, pc + i*4);
+		endBatch();
 		e.handle();
+		startBatch();
+	    }
+
+	    tick();
+	}
+    }
+
+    /**
+     * Account for one executed instruction. Simulated time is only advanced
+     * at the end of a batch, when an interrupt may become due, so the
+     * interrupt controller is not consulted after every instruction.
+     */
+    private void tick() {
+	if (--batchLeft <= 0) {
+	    endBatch();
+	    startBatch();
+	}
+    }
+
+    /**
+     * Start a batch of instructions that ends with the first instruction
+     * after which an interrupt is due. Kernel code is the only thing that
+     * schedules interrupts, so a batch must be restarted whenever kernel code
+     * has run: after an exception handler returns or after ticking.
+     */
+    private void startBatch() {
+	long ticks = privilege.interrupt.getHorizon() - privilege.stats.totalTicks;
+	long length = (ticks + Stats.UserTick - 1) / Stats.UserTick;
+
+	// leave room for cache stalls, which are charged to the batch
+	batchLength = (int) Math.max(1, Math.min(length, maxBatchLength));
+	batchLeft = batchLength;
+    }
+
+    /**
+     * Advance the simulated time for the instructions executed so far in the
+     * current batch. This must be done before running kernel code, which may
+     * read the time or switch to another thread that uses the processor.
+     */
+    private void endBatch() {
+	int executed = batchLength - batchLeft;
+	batchLength = batchLeft = 0;
+
+	if (executed > 0)
+	    privilege.interrupt.tick(executed);
+    }
+
+    /**
+     * Return the translated block starting at the specified physical address,
+     * translating it if it has become hot. Called on every instruction fetch
+     * when block translation is enabled.
+     *
+     * @param	decoded	the decoded instruction at <i>paddr</i>.
+     * @param	paddr	the physical address of the instruction.
+     * @return	the block starting at <i>paddr</i>, or <tt>null</tt> if there
+     *		is none.
+     */
+    private Block findBlock(DecodedInstruction decoded, int paddr) {
+	Block block = decoded.block;
+
+	if (block == null) {
+	    if (++decoded.executions < blockThreshold)
+		return null;
+
+	    block = translateBlock(paddr);
+	    decoded.block = block;
+	}
+	else if (block.epoch != blockEpoch) {
+	    // the kernel has run since this block was last entered, and may
+	    // have loaded a different page into this frame
+	    for (int i=0; i<block.code.length; i++) {
+		if (block.code[i].value !=
+		    memory.getInt(paddr + i*4)) {
+		    decoded.block = null;
+		    decoded.executions = 0;
+		    return null;
+		}
 	    }
+	}
+
+	block.epoch = blockEpoch;
+	return block;
+    }
+
+    /**
+     * Translate the basic block starting at the specified physical address.
+     * The block ends after the delay slot of the first branch, after the first
+     * instruction that always traps, or at the end of the page.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the translated block.
+     */
+    private Block translateBlock(int paddr) {
+	int pageEnd = (paddr/pageSize + 1) * pageSize;
+	int length = 0;
+	boolean branched = false;
+
+	for (int a=paddr; a<pageEnd && length<maxBlockLength; a+=4) {
+	    DecodedInstruction decoded = getDecoded(a);
+	    length++;
+
+	    if (branched)
+		break;
+	    if (Lib.test(Mips.BRANCH, decoded.flags))
+		branched = true;
+	    else if (decoded.operation == Mips.SYSCALL ||
+		     decoded.operation == Mips.UNIMPL ||
+		     decoded.operation == Mips.INVALID)
+		break;
+	}
+
+	Block block = new Block();
+	block.code = new DecodedInstruction[length];
+	for (int i=0; i<length; i++)
+	    block.code[i] = getDecoded(paddr + i*4);
 
-	    privilege.interrupt.tick(false);
+	blockPages[paddr/pageSize] = true;
+
+	Lib.debug(dbgBlocks, "translated " + length
+		  + " instruction block at paddr=0x" + Lib.toHexString(paddr));
+	
+	return block;
+    }
+
+    /**
+     * Return the decoding of the instruction at the specified physical
+     * address, decoding it if the cached decoding is missing or stale.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction getDecoded(int paddr) {
+	int value = memory.getInt(paddr);
+
+	DecodedInstruction decoded = getDecodeCacheEntry(paddr);
+	if (!decoded.valid || decoded.value != value)
+	    decoded.decode(value);
+
+	return decoded;
+    }
+
+    /**
+     * Return the decode cache entry for the specified physical address. The
+     * cache is allocated a page at a time, as each page is first executed,
+     * so large physical memories don't need a large cache.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @return	the decode cache entry, which may not be valid.
+     */
+    private DecodedInstruction getDecodeCacheEntry(int paddr) {
+	DecodedInstruction[] page = decodeCache[paddr / pageSize];
+	if (page == null) {
+	    page = new DecodedInstruction[pageSize / 4];
+	    decodeCache[paddr / pageSize] = page;
+	}
+
+	int i = (paddr % pageSize) / 4;
+	if (page[i] == null)
+	    page[i] = new DecodedInstruction();
+
+	return page[i];
+    }
+
+    /**
+     * Read one of the performance counters (see the
+     * <tt>counter<i>*</i></tt> constants). The counters are never reset, so
+     * code is measured by reading a counter before and after running it.
+     *
+     * @param	counter	the counter to read.
+     * @return	the value of the counter.
+     */
+    public long readCounter(int counter) {
+	Lib.assert(counter >= 0 && counter < numCounters);
+
+	switch (counter) {
+	case counterTotalTicks:
+	    return stats.totalTicks;
+	case counterUserTicks:
+	    return stats.userTicks;
+	case counterInstructions:
+	    return stats.numInstructions;
+	case counterLoads:
+	    return stats.numLoads;
+	case counterStores:
+	    return stats.numStores;
+	case counterBranchesTaken:
+	    return stats.numBranchesTaken;
+	case counterBranchesNotTaken:
+	    return stats.numBranchesNotTaken;
+	case counterLoadStalls:
+	    return stats.numLoadStalls;
+	default:
+	    return stats.numExceptions[counter - counterExceptions];
 	}
     }
 
@@ -148,6 +602,7 @@ public final class Processor {
 	Lib.assert(!usingTLB);
 
 	this.translations = pageTable;
+	blockEpoch++;
     }
 
     /**
@@ -161,6 +616,69 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the associativity of this processor's TLB: the number of entries
+     * in each set. A fully associative TLB has one set of
+     * <tt>getTLBSize()</tt> entries; a direct-mapped TLB has sets of one
+     * entry.
+     *
+     * @return	the number of entries in each TLB set.
+     */
+    public int getTLBAssociativity() {
+	Lib.assert(usingTLB);
+
+	return tlbWays;
+    }
+
+    /**
+     * Return the TLB set that may hold a translation for the specified virtual
+     * page. Set <i>s</i> consists of TLB entries <tt>s*getTLBAssociativity()
+     * </tt> through <tt>(s+1)*getTLBAssociativity() - 1</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the index of the set that may hold the translation.
+     */
+    public int getTLBSet(int vpn) {
+	Lib.assert(usingTLB);
+	Lib.assert(vpn >= 0);
+
+	return vpn % tlbSets;
+    }
+
+    /**
+     * Suggest which TLB entry to replace in order to map the specified virtual
+     * page, according to the replacement policy selected by
+     * <tt>Processor.tlbReplacement</tt> (<tt>random</tt>, <tt>fifo</tt>, or
+     * <tt>lru</tt>). An invalid entry in the set is always preferred. The
+     * kernel is free to ignore the suggestion, as long as it places the
+     * translation in the right set.
+     *
+     * @param	vpn	the virtual page number to be mapped.
+     * @return	the index of the suggested TLB entry.
+     */
+    public int getTLBReplacementHint(int vpn) {
+	Lib.assert(usingTLB);
+
+	int first = getTLBSet(vpn) * tlbWays;
+
+	for (int i=first; i<first+tlbWays; i++) {
+	    if (!translations[i].valid)
+		return i;
+	}
+
+	if (tlbReplacement == replacementRandom)
+	    return first + Lib.random(tlbWays);
+
+	// both FIFO and LRU replace the entry with the oldest stamp
+	int victim = first;
+	for (int i=first+1; i<first+tlbWays; i++) {
+	    if (tlbStamps[i] < tlbStamps[victim])
+		victim = i;
+	}
+
+	return victim;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -178,8 +696,10 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * A valid entry must be placed in the set for its virtual page (see
+     * <tt>getTLBSet()</tt>). If the TLB is fully associative, there is only
+     * one set, so the location of an entry within the TLB does not affect
+     * anything.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -187,8 +707,21 @@ public final class Processor {
     public void writeTLBEntry(int number, TranslationEntry entry) {
 	Lib.assert(usingTLB);
 	Lib.assert(number >= 0 && number < tlbSize);
+	Lib.assert(!entry.valid || number/tlbWays == getTLBSet(entry.vpn));
+
+	tlbStamps[number] = ++tlbClock;
+
+	// a miss after the kernel flushes an entry is not a conflict miss
+	if (shadowTLB != null && !entry.valid && translations[number].valid)
+	    shadowTLB.forget(translations[number].vpn);
+
+	// forget the hints for both the old and new VPN; the next lookup of
+	// either will scan the TLB again
+	tlbHints[translations[number].vpn & (tlbHints.length-1)] = -1;
+	tlbHints[entry.vpn & (tlbHints.length-1)] = -1;
 
 	translations[number] = new TranslationEntry(entry);
+	blockEpoch++;
     }
 
     /**
@@ -205,12 +738,162 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * Physical memory is only an array if <tt>Processor.physicalMemory</tt>
+     * is <tt>heap</tt>. Code that must work with any backing store should
+     * use <tt>readMemory()</tt>, <tt>writeMemory()</tt> and the related
+     * methods instead.
+     *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	Lib.assert(mainMemory != null);
 	return mainMemory;
     }
 
+    /**
+     * Copy bytes from physical memory into an array.
+     *
+     * @param	paddr	the first byte of physical memory to read.
+     * @param	data	the array where the data will be stored.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to transfer.
+     */
+    public void readMemory(int paddr, byte[] data, int offset, int length) {
+	if (mainMemory != null) {
+	    System.arraycopy(mainMemory, paddr, data, offset, length);
+	}
+	else {
+	    ByteBuffer view = memory.duplicate();
+	    view.position(paddr);
+	    view.get(data, offset, length);
+	}
+    }
+
+    /**
+     * Copy bytes from an array into physical memory.
+     *
+     * @param	paddr	the first byte of physical memory to write.
+     * @param	data	the array containing the data to transfer.
+     * @param	offset	the first byte to transfer from the array.
+     * @param	length	the number of bytes to transfer.
+     */
+    public void writeMemory(int paddr, byte[] data, int offset, int length) {
+	if (mainMemory != null) {
+	    System.arraycopy(data, offset, mainMemory, paddr, length);
+	}
+	else {
+	    ByteBuffer view = memory.duplicate();
+	    view.position(paddr);
+	    view.put(data, offset, length);
+	}
+    }
+
+    /**
+     * Fill a range of physical memory with zeros.
+     *
+     * @param	paddr	the first byte of physical memory to clear.
+     * @param	length	the number of bytes to clear.
+     */
+    public void clearMemory(int paddr, int length) {
+	if (mainMemory != null) {
+	    Arrays.fill(mainMemory, paddr, paddr+length, (byte) 0);
+	}
+	else {
+	    ByteBuffer view = memory.duplicate();
+	    view.position(paddr);
+	    for (int i=0; i<length; i+=pageSize)
+		view.put(zeroPage, 0, Math.min(pageSize, length-i));
+	}
+    }
+
+    /**
+     * Read bytes from a file directly into physical memory. When physical
+     * memory is an array, the file reads straight into it.
+     *
+     * @param	file		the file to read.
+     * @param	position	the offset in the file to start reading at.
+     * @param	paddr		the first byte of physical memory to write.
+     * @param	length		the number of bytes to read.
+     * @return	the number of bytes read, or -1 on failure.
+     */
+    public int loadMemory(OpenFile file, int position, int paddr,
+			  int length) {
+	if (mainMemory != null)
+	    return file.read(position, mainMemory, paddr, length);
+
+	// the file is read even for no bytes, so that it takes its usual time
+	byte[] page = takeScratchPage();
+	int total = 0;
+	do {
+	    int amount = file.read(position+total, page, 0,
+				   Math.min(pageSize, length-total));
+	    if (amount <= 0) {
+		if (total == 0)
+		    total = amount;
+		break;
+	    }
+
+	    writeMemory(paddr+total, page, 0, amount);
+	    total += amount;
+	} while (total < length);
+	scratchPage = page;
+
+	return total;
+    }
+
+    /**
+     * Write bytes from physical memory directly to a file. When physical
+     * memory is an array, the file writes straight from it.
+     *
+     * @param	file		the file to write.
+     * @param	position	the offset in the file to start writing at.
+     * @param	paddr		the first byte of physical memory to read.
+     * @param	length		the number of bytes to write.
+     * @return	the number of bytes written, or -1 on failure.
+     */
+    public int storeMemory(OpenFile file, int position, int paddr,
+			   int length) {
+	if (mainMemory != null)
+	    return file.write(position, mainMemory, paddr, length);
+
+	byte[] page = takeScratchPage();
+	int total = 0;
+	do {
+	    int chunk = Math.min(pageSize, length-total);
+	    readMemory(paddr+total, page, 0, chunk);
+
+	    int amount = file.write(position+total, page, 0, chunk);
+	    if (amount <= 0) {
+		if (total == 0)
+		    total = amount;
+		break;
+	    }
+
+	    total += amount;
+	    if (amount < chunk)
+		break;
+	} while (total < length);
+	scratchPage = page;
+
+	return total;
+    }
+
+    /**
+     * Take the page buffer kept for copying between files and physical
+     * memory outside the Java heap, or allocate a new one if another thread
+     * has it, while blocked in a file. The caller puts it back in
+     * <tt>scratchPage</tt> when done.
+     */
+    private byte[] takeScratchPage() {
+	byte[] page = scratchPage;
+	scratchPage = null;
+
+	if (page == null)
+	    page = new byte[pageSize];
+	return page;
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -248,6 +931,57 @@ public final class Processor {
 	return (int) (((long) address & 0xFFFFFFFFL) % pageSize);
     }
 
+    /**
+     * Account for a TLB hit on the specified entry.
+     *
+     * @param	slot	the TLB entry that matched.
+     */
+    private void recordTLBHit(int slot) {
+	privilege.stats.numTLBHits++;
+	privilege.stats.tlbSetHits[slot / tlbWays]++;
+	if (tlbReplacement == replacementLRU)
+	    tlbStamps[slot] = ++tlbClock;
+    }
+
+    /**
+     * Return <tt>true</tt> if the specified TLB entry is valid and maps the
+     * specified virtual page.
+     *
+     * @param	slot	the TLB entry to check.
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the entry maps the page.
+     */
+    private boolean holdsPage(int slot, int vpn) {
+	return (translations[slot].valid && translations[slot].vpn == vpn);
+    }
+
+    /**
+     * Prepare the processor's exception object to signal a trap with the
+     * specified cause. Traps are raised on every TLB miss, page fault and
+     * syscall, so the same object is reused rather than allocating one (and
+     * capturing a stack trace) each time. This is safe because a trap is
+     * always handled by the thread that raised it, and <tt>handle()</tt>
+     * reads everything it needs before the kernel can run.
+     *
+     * @param	cause	the cause of the trap.
+     * @return	the processor's exception object.
+     */
+    private MipsException trap(int cause) {
+	return trap.set(cause, false, 0);
+    }
+
+    /**
+     * Prepare the processor's exception object to signal a trap with the
+     * specified cause and bad virtual address.
+     *
+     * @param	cause		the cause of the trap.
+     * @param	badVAddr	the virtual address that caused the trap.
+     * @return	the processor's exception object.
+     */
+    private MipsException trap(int cause, int badVAddr) {
+	return trap.set(cause, true, badVAddr);
+    }
+
     private void finishLoad() {
 	delayedLoad(0, 0, 0);
     }
@@ -267,14 +1001,14 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
 
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
 	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    throw trap(exceptionAddressError, vaddr);
 	}
 
 	// calculate virtual page number and offset from the virtual address
@@ -290,37 +1024,63 @@ public final class Processor {
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		throw trap(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, try the hinted TLB entry, then look through the set
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
+	    Stats stats = privilege.stats;
+	    int set = vpn % tlbSets;
+	    int bucket = vpn & (tlbHints.length-1);
+	    int slot = tlbHints[bucket];
+
+	    if (slot == -1 || !translations[slot].valid ||
+		translations[slot].vpn != vpn) {
+		slot = -1;
+		
+		int first = set * tlbWays;
+		for (int i=first; i<first+tlbWays; i++) {
+		    if (translations[i].valid && translations[i].vpn == vpn) {
+			slot = i;
+			tlbHints[bucket] = i;
+			break;
+		    }
 		}
 	    }
-	    if (entry == null) {
-		privilege.stats.numTLBMisses++;
+
+	    // would a fully associative TLB of the same size hold this page?
+	    boolean recent = (shadowTLB != null && shadowTLB.touch(vpn));
+	    
+	    if (slot == -1) {
+		stats.numTLBMisses++;
+		stats.tlbSetMisses[set]++;
+		if (recent) {
+		    stats.numTLBConflictMisses++;
+		    stats.tlbSetConflictMisses[set]++;
+		}
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+		throw trap(exceptionTLBMiss, vaddr);
 	    }
+
+	    recordTLBHit(slot);
+	    lastTLBSlot = slot;
+	    
+	    entry = translations[slot];
 	}
 
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
 	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	    throw trap(exceptionReadOnly, vaddr);
 	}
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
 	if (ppn < 0 || ppn >= numPhysPages) {
 	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+	    throw trap(exceptionBusError, vaddr);
 	}
 
 	// set used and dirty bits as appropriate
@@ -330,7 +1090,7 @@ public final class Processor {
 
 	int paddr = (ppn*pageSize) + offset;
 
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
@@ -345,16 +1105,32 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assert(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int paddr = translate(vaddr, size, false);
+
+	if (dataCache != null)
+	    accessDataCache(paddr);
+
+	// translate() checked alignment, so each size is a single access
+	int value;
+	switch (size) {
+	case 1:
+	    value = memory.get(paddr);
+	    break;
+	case 2:
+	    value = memory.getShort(paddr);
+	    break;
+	default:
+	    value = memory.getInt(paddr);
+	    break;
+	}
 
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\t\tvalue read=0x" +
 			       Lib.toHexString(value, size*2));
 	
@@ -372,15 +1148,65 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size + ", value=0x"
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assert(size==1 || size==2 || size==4);
-	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+
+	int paddr = translate(vaddr, size, true);
+
+	if (dataCache != null)
+	    accessDataCache(paddr);
+
+	switch (size) {
+	case 1:
+	    memory.put(paddr, (byte) value);
+	    break;
+	case 2:
+	    memory.putShort(paddr, (short) value);
+	    break;
+	default:
+	    memory.putInt(paddr, value);
+	    break;
+	}
+
+	// self-modifying code must leave any translated block
+	if (translateBlocks && blockPages[paddr/pageSize])
+	    blockEpoch++;
+    }
+
+    /**
+     * Look up an instruction fetch in the instruction cache, and stall the
+     * processor if it misses.
+     *
+     * @param	paddr	the physical address of the instruction.
+     */
+    private void accessInstructionCache(int paddr) {
+	if (instructionCache.access(paddr)) {
+	    stats.numInstructionCacheHits++;
+	}
+	else {
+	    stats.numInstructionCacheMisses++;
+	    batchLeft -= cacheMissStall;
+	}
+    }
+
+    /**
+     * Look up a load or store in the data cache, and stall the processor if
+     * it misses.
+     *
+     * @param	paddr	the physical address accessed.
+     */
+    private void accessDataCache(int paddr) {
+	if (dataCache.access(paddr)) {
+	    stats.numDataCacheHits++;
+	}
+	else {
+	    stats.numDataCacheMisses++;
+	    batchLeft -= cacheMissStall;
+	}
     }
 
     /**
@@ -464,6 +1290,36 @@ public final class Processor {
 	"overflow     ",
 	"illegal inst "
     };
+
+    /** Counts simulated time since Nachos started. */
+    public static final int counterTotalTicks = 0;
+    /** Counts simulated time spent running user instructions. */
+    public static final int counterUserTicks = 1;
+    /** Counts user instructions that completed without an exception. */
+    public static final int counterInstructions = 2;
+    /** Counts completed user load instructions. */
+    public static final int counterLoads = 3;
+    /** Counts completed user store instructions. */
+    public static final int counterStores = 4;
+    /** Counts user branches and jumps that were taken. */
+    public static final int counterBranchesTaken = 5;
+    /** Counts user branches that were not taken. */
+    public static final int counterBranchesNotTaken = 6;
+    /**
+     * Counts user instructions that read the target register of a load in
+     * the delay slot, which would stall a processor with interlocked loads.
+     */
+    public static final int counterLoadStalls = 7;
+    /**
+     * The first of the counters of user exceptions, one for each cause. The
+     * counter of exceptions with cause <i>c</i> is
+     * <tt>counterExceptions+<i>c</i></tt>, so
+     * <tt>counterExceptions+exceptionSyscall</tt> counts syscalls.
+     */
+    public static final int counterExceptions = 8;
+    /** The number of performance counters. */
+    public static final int numCounters =
+	counterExceptions + exceptionNames.length;
     
     /** Index of return value register 0. */
     public static final int regV0 = 2;
@@ -513,12 +1369,40 @@ public final class Processor {
     /** <tt>true</tt> if using a software-managed TLB. */
     private boolean usingTLB;
     /** Number of TLB entries. */
-    private int tlbSize = 4;
+    private int tlbSize;
+    /** Number of TLB entries in each set. */
+    private int tlbWays;
+    /** Number of TLB sets. */
+    private int tlbSets;
+    /** The replacement policy suggested by <tt>getTLBReplacementHint()</tt>. */
+    private int tlbReplacement;
+    /** Per-entry fill time (FIFO) or last-use time (LRU), in TLB accesses. */
+    private long[] tlbStamps;
+    private long tlbClock = 0;
+    /**
+     * The most recently used VPNs, for classifying conflict misses. Only
+     * kept if there is more than one set.
+     */
+    private ShadowTLB shadowTLB = null;
+    /** The TLB entry used by the most recent successful translation. */
+    private int lastTLBSlot;
+
+    private static final int defaultTLBSize = 4;
+    private static final int
+	replacementRandom = 0,
+	replacementFIFO = 1,
+	replacementLRU = 2;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
+    /**
+     * A direct-mapped table, indexed by the low bits of a VPN, of the TLB
+     * entry that last matched a VPN hashing there, or -1. Only a hint: the
+     * entry is always checked before it is used.
+     */
+    private int[] tlbHints;
 
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
@@ -526,37 +1410,115 @@ public final class Processor {
     private static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
-    /** Main memory for user programs. */
+    /**
+     * Main memory for user programs, if it is a Java array, or
+     * <tt>null</tt> if it is outside the Java heap.
+     */
     private byte[] mainMemory;
+    /**
+     * Main memory for user programs, as a little-endian buffer used to load
+     * and store whole halfwords and words instead of assembling them a byte
+     * at a time. If main memory is an array, stores made through
+     * <tt>getMemory()</tt> are visible through it.
+     */
+    private ByteBuffer memory;
+    /**
+     * A page buffer reused by <tt>loadMemory()</tt> and
+     * <tt>storeMemory()</tt>, or <tt>null</tt> while one of them has it.
+     */
+    private byte[] scratchPage = null;
+    /** A page of zeros, copied by <tt>clearMemory()</tt>. */
+    private static final byte[] zeroPage = new byte[pageSize];
+    /**
+     * Decoded instructions, indexed by physical page number and then by word
+     * within the page.
+     */
+    private DecodedInstruction[][] decodeCache;
+
+    /** <tt>true</tt> if hot basic blocks are translated. */
+    private boolean translateBlocks;
+    /** Number of executions after which a block is translated. */
+    private int blockThreshold;
+    /** Physical pages containing the start of a translated block. */
+    private boolean[] blockPages;
+    /**
+     * Changed whenever translated blocks may no longer match memory or the
+     * address translation they were entered with.
+     */
+    private int blockEpoch = 0;
+
+    private static final int defaultBlockThreshold = 16;
+    private static final int maxBlockLength = 64;
+
+    /**
+     * The L1 caches, or <tt>null</tt> if every memory access takes the same
+     * time.
+     */
+    private Cache instructionCache = null, dataCache = null;
+    /** Instructions' worth of time that a cache miss stalls the processor. */
+    private int cacheMissStall;
+
+    private static final int maxBatchLength = 1 << 30;
+
+    private static final int defaultCacheSize = 4096;
+    private static final int defaultCacheLineSize = 16;
+    private static final int defaultCacheAssociativity = 2;
+    private static final int defaultCacheMissPenalty = 10;
+
+    /** The machine statistics, which hold the performance counters. */
+    private Stats stats;
+
+    /** <tt>true</tt> if memory accesses are traced (debug flag p). */
+    private boolean traceMemory;
+
+    /** Counts retired instructions, or <tt>null</tt> if not profiling. */
+    private Profiler profiler = null;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
+    /** The exception object thrown by every trap. */
+    private MipsException trap = new MipsException();
+
+    /** The number of instructions in the current batch. */
+    private int batchLength = 0;
+    /** The number of instructions left to execute in the current batch. */
+    private int batchLeft = 0;
 
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
+    private static final char dbgBlocks = 'b';
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+	    // an interrupt handler is about to run
+	    blockEpoch++;
 	}
     }
 
     private class MipsException extends Exception {
-	public MipsException(int cause) {
+	MipsException set(int cause, boolean hasBadVAddr, int badVAddr) {
 	    Lib.assert(cause >= 0 && cause < exceptionNames.length);
 
 	    this.cause = cause;
+	    this.hasBadVAddr = hasBadVAddr;
+	    this.badVAddr = badVAddr;
+	    return this;
 	}
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
-
-	    hasBadVAddr = true;
-	    this.badVAddr = badVAddr;
+	/**
+	 * Traps are part of normal execution, not errors, so don't capture a
+	 * stack trace.
+	 */
+	public Throwable fillInStackTrace() {
+	    return this;
 	}
 
 	public void handle() {
+	    blockEpoch++;
+	    stats.numExceptions[cause]++;
+	    
 	    writeRegister(regCause, cause);
 
 	    if (hasBadVAddr)
@@ -587,75 +1549,170 @@ public final class Processor {
 	    decode();
 	    execute();
 	    writeBack();
-	}	
+	}
+
+	/**
+	 * Execute an instruction of a translated block. The caller guarantees
+	 * that <i>decoded</i> is the instruction at the current PC, and that
+	 * fetching it would succeed.
+	 */
+	public void run(DecodedInstruction decoded) throws MipsException {
+	    this.decoded = decoded;
+	    value = decoded.value;
+	    fetched = false;
+
+	    decode();
+	    execute();
+	    writeBack();
+	}
 
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
 
+	/**
+	 * Called when this instruction, at <i>pc</i>, raises an exception. A
+	 * syscall is retired, since the kernel completes it and moves on to
+	 * the next instruction; any other exception restarts the instruction
+	 * or ends the process.
+	 *
+	 * @param	e	the exception raised by this instruction.
+	 * @param	pc	the virtual address of this instruction.
+	 */
+	void retireSyscall(MipsException e, int pc) {
+	    if (e.cause != exceptionSyscall)
+		return;
+
+	    stats.numInstructions++;
+	    if (profiler != null)
+		profile(pc);
+	}
+
+	/**
+	 * Tell the profiler that this instruction, at <i>pc</i>, has retired.
+	 */
+	void profile(int pc) {
+	    if (test(Mips.LINK) && branch)
+		profiler.retire(context, pc, Profiler.call,
+				registers[regNextPC]);
+	    else if (operation == Mips.JUMP && format == Mips.RFMT &&
+		     rs == regRA)
+		profiler.retire(context, pc, Profiler.ret, 0);
+	    else
+		profiler.retire(context, pc, Profiler.plain, 0);
+	}
+
 	private void fetch() throws MipsException {
 	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
 		Lib.test(dbgFullDisassemble))
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
-	}
-	
-	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
+	    int vaddr = registers[regPC];
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
+	    if (traceMemory)
+		System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+				   + ", size=4");
+
+	    fetched = false;
+
+	    int paddr;
+	    if (restartLatched && vaddr == restartPC &&
+		!holdsPage(restartSlot, pageFromAddress(vaddr)) &&
+		memory.getInt(restartPaddr) == restartValue) {
+		// the entry was evicted, but this is still a hit on it
+		if (shadowTLB != null)
+		    shadowTLB.touch(pageFromAddress(vaddr));
+		recordTLBHit(restartSlot);
+
+		paddr = restartPaddr;
+		fetchSlot = -1;
+	    }
+	    else {
+		paddr = translate(vaddr, 4, false);
+		fetchSlot = lastTLBSlot;
 	    }
+	    restartLatched = false;
+	    
+	    if (instructionCache != null)
+		accessInstructionCache(paddr);
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    value = memory.getInt(paddr);
+	    fetched = true;
+	    fetchPaddr = paddr;
+
+	    if (traceMemory)
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
+
+	    // the cached decoding is only reused if the word it was decoded
+	    // from is still in memory, so no writer needs to invalidate it
+	    decoded = getDecodeCacheEntry(paddr);
+	    if (!decoded.valid || decoded.value != value)
+		decoded.decode(value);
+
+	    if (translateBlocks && (!usingTLB || fetchSlot != -1))
+		block = findBlock(decoded, paddr);
+	}
+
+	/**
+	 * Called when this instruction raises an exception. With a
+	 * direct-mapped TLB, an instruction whose code and data pages map to
+	 * the same set could never complete, because refilling either entry
+	 * evicts the other. So if a load or store misses in a direct-mapped
+	 * TLB, the instruction fetch translation is latched (much like a
+	 * micro-TLB) and reused once when the instruction is restarted, if the
+	 * TLB no longer holds it. The reused translation is accounted as a hit
+	 * on the entry it came from, whose <tt>used</tt> bit was set by the
+	 * original fetch.
+	 *
+	 * @param	e	the exception raised by this instruction.
+	 * @param	pc	the virtual address of this instruction.
+	 * @param	paddr	the physical address it was fetched from.
+	 * @param	slot	the TLB entry it was fetched through, or -1 if it
+	 *			was fetched through the latch, which then stays
+	 *			latched to the same entry.
+	 */
+	void latchRestart(MipsException e, int pc, int paddr, int slot) {
+	    if (usingTLB && tlbWays == 1 && e.cause == exceptionTLBMiss) {
+		restartLatched = true;
+		restartPC = pc;
+		restartPaddr = paddr;
+		if (slot != -1)
+		    restartSlot = slot;
+		restartValue = memory.getInt(paddr);
+	    }
+	}
+	
+	private void decode() {
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    // the value being loaded by the last instruction is not visible yet
+	    if (loadTarget != 0 &&
+		(decoded.srcRS == loadTarget || decoded.srcRT == loadTarget))
+		stats.numLoadStalls++;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
 	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
-
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
@@ -835,15 +1892,13 @@ public final class Processor {
 		registers[regHi] = (int) Lib.extract(dst, 32, 32);
 		break;
 	    case Mips.DIV:
-		try {
-		    registers[regLo] = (int) (src1 / src2);
-		    registers[regHi] = (int) (src1 % src2);
-		    if (registers[regLo]*src2 + registers[regHi] != src1)
-			throw new ArithmeticException();
-		}
-		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
-		}
+		if (src2 == 0)
+		    throw trap(exceptionOverflow);
+
+		registers[regLo] = (int) (src1 / src2);
+		registers[regHi] = (int) (src1 % src2);
+		if (registers[regLo]*src2 + registers[regHi] != src1)
+		    throw trap(exceptionOverflow);
 		break;
 
 	    case Mips.SLL:
@@ -912,7 +1967,7 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw trap(exceptionSyscall);
 
 	    case Mips.LOAD:
 		value = readMem(addr, size);
@@ -982,7 +2037,7 @@ public final class Processor {
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw trap(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
@@ -992,7 +2047,7 @@ public final class Processor {
 	private void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw trap(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1019,6 +2074,20 @@ public final class Processor {
 
 	    advancePC(nextPC);
 
+	    stats.numInstructions++;
+	    if (test(Mips.BRANCH)) {
+		if (branch)
+		    stats.numBranchesTaken++;
+		else
+		    stats.numBranchesNotTaken++;
+	    }
+	    else if (operation >= Mips.LOAD) {
+		if (operation >= Mips.STORE)
+		    stats.numStores++;
+		else
+		    stats.numLoads++;
+	    }
+
 	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
 		Lib.test(dbgFullDisassemble))
 		System.out.print("\n");
@@ -1034,6 +2103,243 @@ public final class Processor {
 	long src1, src2, dst;
 	int mask;	
 	boolean branch;
+
+	DecodedInstruction decoded;
+	Block block;
+
+	// state of the last instruction fetch
+	boolean fetched;
+	int fetchPaddr, fetchSlot;
+
+	// fetch translation latched by latchRestart()
+	boolean restartLatched = false;
+	int restartPC, restartPaddr, restartSlot, restartValue;
+
+	// the call path of this thread, kept by the profiler
+	Profiler.Context context = new Profiler.Context();
+    }
+
+    /**
+     * The parts of an instruction's decoding that depend only on the
+     * instruction word, and not on the contents of any register.
+     */
+    private static class DecodedInstruction {
+	void decode(int value) {
+	    this.value = value;
+	    executions = 0;
+	    block = null;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    srcRS = info.readsRS ? rs : 0;
+	    srcRT = info.readsRT ? rt : 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    valid = true;
+	}
+
+	boolean valid = false;
+	int value, op, rs, rt, rd, sh, func, target, imm;
+	int operation, format, flags;
+	String name;
+	int size, dstReg;
+	/** The registers read by the instruction, or 0 if none. */
+	int srcRS, srcRT;
+
+	/** Times fetched since decoding, until a block is translated here. */
+	int executions;
+	/** The translated block starting at this instruction, if any. */
+	Block block;
+    }
+
+    /**
+     * A translated basic block: the decoded instructions at consecutive
+     * physical addresses, run without fetching each through the TLB or page
+     * table.
+     */
+    private static class Block {
+	DecodedInstruction[] code;
+	/** The value of <tt>blockEpoch</tt> when the block was last checked. */
+	int epoch;
+    }
+
+    /**
+     * A shadow fully associative LRU TLB, holding as many virtual pages as
+     * the real TLB. A miss in the real TLB on a page that the shadow TLB holds
+     * is a conflict miss. The pages are kept in a list, most recently used
+     * first, and found through a hash table, so every operation takes
+     * constant time.
+     */
+    private static class ShadowTLB {
+	ShadowTLB(int size) {
+	    vpns = new int[size];
+	    prev = new int[size];
+	    next = new int[size];
+	    chain = new int[size];
+
+	    // every entry starts on the free list, linked through next
+	    for (int i=0; i<size; i++)
+		next[i] = i+1;
+	    next[size-1] = -1;
+
+	    int numBuckets = 16;
+	    while (numBuckets < size*2)
+		numBuckets *= 2;
+	    buckets = new int[numBuckets];
+	    for (int i=0; i<numBuckets; i++)
+		buckets[i] = -1;
+	}
+
+	/**
+	 * Make the specified virtual page the most recently used page.
+	 *
+	 * @param	vpn	the virtual page being accessed.
+	 * @return	<tt>true</tt> if the shadow TLB held the page.
+	 */
+	boolean touch(int vpn) {
+	    if (head != -1 && vpns[head] == vpn)
+		return true;
+
+	    int i = find(vpn);
+	    boolean found = (i != -1);
+
+	    if (found) {
+		unlink(i);
+	    }
+	    else {
+		if (free != -1) {
+		    i = free;
+		    free = next[i];
+		}
+		else {
+		    // replace the least recently used page
+		    i = tail;
+		    unlink(i);
+		    unhash(i);
+		}
+
+		vpns[i] = vpn;
+		int bucket = vpn & (buckets.length-1);
+		chain[i] = buckets[bucket];
+		buckets[bucket] = i;
+	    }
+
+	    prev[i] = -1;
+	    next[i] = head;
+	    if (head != -1)
+		prev[head] = i;
+	    else
+		tail = i;
+	    head = i;
+
+	    return found;
+	}
+
+	/**
+	 * Remove the specified virtual page, if the shadow TLB holds it.
+	 *
+	 * @param	vpn	the virtual page whose translation was flushed.
+	 */
+	void forget(int vpn) {
+	    int i = find(vpn);
+	    if (i == -1)
+		return;
+
+	    unlink(i);
+	    unhash(i);
+	    next[i] = free;
+	    free = i;
+	}
+
+	private int find(int vpn) {
+	    int i = buckets[vpn & (buckets.length-1)];
+	    while (i != -1 && vpns[i] != vpn)
+		i = chain[i];
+
+	    return i;
+	}
+
+	private void unlink(int i) {
+	    if (prev[i] != -1)
+		next[prev[i]] = next[i];
+	    else
+		head = next[i];
+
+	    if (next[i] != -1)
+		prev[next[i]] = prev[i];
+	    else
+		tail = prev[i];
+	}
+
+	private void unhash(int i) {
+	    int bucket = vpns[i] & (buckets.length-1);
+	    if (buckets[bucket] == i) {
+		buckets[bucket] = chain[i];
+		return;
+	    }
+
+	    int j = buckets[bucket];
+	    while (chain[j] != i)
+		j = chain[j];
+	    chain[j] = chain[i];
+	}
+
+	/** The VPN held in each entry. */
+	private int[] vpns;
+	/** The neighbours of each entry in the list, or <tt>-1</tt>. */
+	private int[] prev, next;
+	/** The next entry in the same hash bucket, or <tt>-1</tt>. */
+	private int[] chain;
+	/** The first entry in each hash bucket, or <tt>-1</tt>. */
+	private int[] buckets;
+	/** The most and least recently used entries, or <tt>-1</tt>. */
+	private int head = -1, tail = -1;
+	/** The first unused entry, or <tt>-1</tt>. */
+	private int free = 0;
     }
 
     private static class Mips {
@@ -1049,12 +2355,19 @@ public final class Processor {
 	    this(operation, name);
 	    this.format = format;
 	    this.flags = flags;
+
+	    // rt is the destination of immediate instructions and loads
+	    String operands = name.substring(name.indexOf(' ')+1);
+	    readsRS = operands.indexOf(RS) != -1 || operands.indexOf(ADDR) != -1;
+	    readsRT = operands.indexOf(RT) != -1 &&
+		!(format == IFMT && Lib.test(DST|DELAYEDLOAD, flags));
 	}
 
 	int operation = INVALID;
 	String name = "invalid ";
 	int format;
 	int flags;
+	boolean readsRS = false, readsRT = false;
 
 	// operation types
 	static final int
@@ -0,0 +1,479 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Counts the user instructions retired by the processor, by virtual address.
+ * The processor reports every instruction it retires, so the profiler must be
+ * cheap: it only increments a few array entries, and follows calls and
+ * returns through a tree of frames that allocates nothing once a call path
+ * has been seen.
+ *
+ * <p>
+ * When the machine halts, the profiler writes a report with the instructions
+ * retired in each COFF section and procedure, the hottest basic blocks, and
+ * the calls between procedures, and a second file with one line per call
+ * path in the folded stack format read by flame graph tools.
+ *
+ * <p>
+ * A call is any instruction that links (<tt>jal</tt>, <tt>jalr</tt>,
+ * <tt>bltzal</tt>, <tt>bgezal</tt>) and a return is <tt>jr $31</tt>, so the
+ * call graph is only an approximation for code that returns some other way.
+ * Each thread that runs user instructions follows its own call path, from
+ * the entry point of the first program profiled, so context switches do not
+ * mix the paths of different processes. Addresses are virtual, so profiles of
+ * several processes running different programs are merged.
+ */
+final class Profiler {
+    /**
+     * Allocate a new profiler.
+     *
+     * @param	fileName	the name of the report file. Folded stacks
+     *				are written to the same name followed by
+     *				<tt>.folded</tt>.
+     */
+    Profiler(String fileName) {
+	this.fileName = fileName;
+    }
+
+    /**
+     * Record the sections and procedures of an executable, so they can be
+     * used to name addresses in the report.
+     *
+     * @param	coff	the executable.
+     */
+    void addExecutable(Coff coff) {
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    int start = section.getFirstVPN() * Processor.pageSize;
+	    int end = start + section.getLength() * Processor.pageSize;
+
+	    if (findSection(section.getName(), start, end) < 0) {
+		sectionNames.add(section.getName());
+		sectionStarts.add(new Integer(start));
+		sectionEnds.add(new Integer(end));
+	    }
+	}
+
+	coff.readProcedures();
+	for (int i=0; i<coff.getNumProcedures(); i++)
+	    addProcedure(coff.getProcedureName(i),
+			 coff.getProcedureAddress(i));
+    }
+
+    private int findSection(String name, int start, int end) {
+	for (int i=0; i<sectionNames.size(); i++) {
+	    if (sectionNames.elementAt(i).equals(name) &&
+		((Integer) sectionStarts.elementAt(i)).intValue() == start &&
+		((Integer) sectionEnds.elementAt(i)).intValue() == end)
+		return i;
+	}
+
+	return -1;
+    }
+
+    private void addProcedure(String name, int address) {
+	int i = findProcedure(address) + 1;
+	if (i > 0 && procedureAddresses[i-1] == address)
+	    return;
+
+	if (numProcedures == procedureAddresses.length) {
+	    int[] newAddresses = new int[numProcedures*2];
+	    String[] newNames = new String[numProcedures*2];
+	    System.arraycopy(procedureAddresses, 0, newAddresses, 0,
+			     numProcedures);
+	    System.arraycopy(procedureNames, 0, newNames, 0, numProcedures);
+	    procedureAddresses = newAddresses;
+	    procedureNames = newNames;
+	}
+
+	System.arraycopy(procedureAddresses, i, procedureAddresses, i+1,
+			 numProcedures-i);
+	System.arraycopy(procedureNames, i, procedureNames, i+1,
+			 numProcedures-i);
+	procedureAddresses[i] = address;
+	procedureNames[i] = name;
+	numProcedures++;
+    }
+
+    /**
+     * Count an instruction that has just been retired.
+     *
+     * @param	context	the call path of the thread that retired it.
+     * @param	pc	the virtual address of the instruction.
+     * @param	kind	<tt>plain</tt>, <tt>call</tt>, or <tt>ret</tt>.
+     * @param	target	the address called, if <i>kind</i> is
+     *			<tt>call</tt>.
+     */
+    void retire(Context context, int pc, int kind, int target) {
+	int index = pc >>> 2;
+	if (index >= counts.length)
+	    grow(index);
+
+	counts[index]++;
+	numRetired++;
+
+	if (root == null)
+	    root = new Frame(null, pc);
+	if (context.frame == null)
+	    context.frame = root;
+
+	if (pc != context.lastPC + 4) {
+	    context.leader = index;
+	    blockEntries[index]++;
+	}
+	blockCounts[context.leader]++;
+	context.lastPC = pc;
+
+	context.frame.instructions++;
+
+	// calls and returns take effect after the delay slot
+	if (context.pendingKind == call)
+	    enter(context, context.pendingTarget);
+	else if (context.pendingKind == ret)
+	    leave(context);
+
+	context.pendingKind = kind;
+	context.pendingTarget = target;
+    }
+
+    private void enter(Context context, int target) {
+	Frame frame = context.frame;
+	if (frame.depth == maxDepth) {
+	    context.numHidden++;
+	    return;
+	}
+
+	Frame child = frame.firstChild;
+	while (child != null && child.address != target)
+	    child = child.nextSibling;
+
+	if (child == null) {
+	    child = new Frame(frame, target);
+	    child.nextSibling = frame.firstChild;
+	    frame.firstChild = child;
+	}
+
+	child.calls++;
+	context.frame = child;
+    }
+
+    private void leave(Context context) {
+	if (context.numHidden > 0)
+	    context.numHidden--;
+	else if (context.frame.parent != null)
+	    context.frame = context.frame.parent;
+    }
+
+    private void grow(int index) {
+	int length = Math.max(counts.length, 1024);
+	while (length <= index && length > 0)
+	    length *= 2;
+	if (length <= index)
+	    length = Integer.MAX_VALUE;
+
+	counts = copyOf(counts, length);
+	blockEntries = copyOf(blockEntries, length);
+	blockCounts = copyOf(blockCounts, length);
+    }
+
+    private static long[] copyOf(long[] array, int length) {
+	long[] copy = new long[length];
+	System.arraycopy(array, 0, copy, 0, array.length);
+	return copy;
+    }
+
+    /**
+     * Write the report and the folded stacks.
+     *
+     * @return	<tt>true</tt> if both files were written.
+     */
+    boolean write() {
+	try {
+	    PrintWriter out = new PrintWriter(new FileWriter(fileName));
+	    writeReport(out);
+	    out.close();
+
+	    out = new PrintWriter(new FileWriter(fileName + ".folded"));
+	    if (root != null)
+		writeFolded(out, root, "");
+	    out.close();
+
+	    return !out.checkError();
+	}
+	catch (IOException e) {
+	    return false;
+	}
+    }
+
+    private void writeReport(PrintWriter out) {
+	out.println("Instructions retired: " + numRetired);
+
+	out.println();
+	out.println("Sections:");
+	out.println(pad("count", 12) + pad("%", 8) + "  section");
+	for (int i=0; i<sectionNames.size(); i++) {
+	    int start = ((Integer) sectionStarts.elementAt(i)).intValue();
+	    int end = ((Integer) sectionEnds.elementAt(i)).intValue();
+
+	    long count = 0;
+	    for (int j=start>>>2; j<(end>>>2) && j<counts.length; j++)
+		count += counts[j];
+
+	    out.println(pad(count, 12) + pad(percent(count), 8) + "  " +
+			sectionNames.elementAt(i) + " (0x" +
+			Lib.toHexString(start) + "-0x" +
+			Lib.toHexString(end) + ")");
+	}
+
+	// self counts come from the PCs, totals from the call tree
+	long[] self = new long[numProcedures+1];
+	for (int i=0; i<counts.length; i++) {
+	    if (counts[i] != 0)
+		self[findProcedure(i<<2)+1] += counts[i];
+	}
+
+	long[] total = new long[numProcedures+1];
+	if (root != null)
+	    addTotals(root, total, new int[numProcedures+1]);
+
+	out.println();
+	out.println("Procedures:");
+	out.println(pad("self", 12) + pad("%", 8) +
+		    pad("total", 12) + pad("%", 8) + "  procedure");
+	Integer[] order = sort(self);
+	for (int i=0; i<order.length; i++) {
+	    int p = order[i].intValue();
+	    if (self[p] == 0 && total[p] == 0)
+		break;
+
+	    out.println(pad(self[p], 12) + pad(percent(self[p]), 8) +
+			pad(total[p], 12) + pad(percent(total[p]), 8) + "  " +
+			(p == 0 ? "(unknown)" : procedureNames[p-1]));
+	}
+
+	out.println();
+	out.println("Hottest blocks:");
+	out.println(pad("count", 12) + pad("entries", 12) +
+		    "  address     location");
+	order = sort(blockCounts);
+	for (int i=0; i<order.length && i<numHotBlocks; i++) {
+	    int b = order[i].intValue();
+	    if (blockCounts[b] == 0)
+		break;
+
+	    out.println(pad(blockCounts[b], 12) + pad(blockEntries[b], 12) +
+			"  0x" + Lib.toHexString(b<<2) + "  " +
+			location(b<<2));
+	}
+
+	Hashtable edges = new Hashtable();
+	if (root != null)
+	    addEdges(root, edges);
+
+	Vector names = new Vector();
+	long[] calls = new long[edges.size()];
+	Enumeration e = edges.keys();
+	for (int i=0; e.hasMoreElements(); i++) {
+	    String edge = (String) e.nextElement();
+	    names.add(edge);
+	    calls[i] = ((long[]) edges.get(edge))[0];
+	}
+
+	out.println();
+	out.println("Call graph:");
+	out.println(pad("calls", 12) + "  caller -> callee");
+	order = sort(calls);
+	for (int i=0; i<order.length; i++) {
+	    int c = order[i].intValue();
+	    out.println(pad(calls[c], 12) + "  " + names.elementAt(c));
+	}
+    }
+
+    /**
+     * Add the instructions retired in a frame and its descendants to the
+     * total of its procedure, unless the procedure is already active further
+     * up the call path, in which case they have been counted there.
+     */
+    private long addTotals(Frame frame, long[] total, int[] active) {
+	int p = findProcedure(frame.address)+1;
+
+	active[p]++;
+	long inclusive = frame.instructions;
+	for (Frame child=frame.firstChild; child!=null;
+	     child=child.nextSibling)
+	    inclusive += addTotals(child, total, active);
+	active[p]--;
+
+	if (active[p] == 0)
+	    total[p] += inclusive;
+
+	return inclusive;
+    }
+
+    private void addEdges(Frame frame, Hashtable edges) {
+	for (Frame child=frame.firstChild; child!=null;
+	     child=child.nextSibling) {
+	    String edge = name(frame.address) + " -> " + name(child.address);
+
+	    long[] calls = (long[]) edges.get(edge);
+	    if (calls == null) {
+		calls = new long[1];
+		edges.put(edge, calls);
+	    }
+	    calls[0] += child.calls;
+
+	    addEdges(child, edges);
+	}
+    }
+
+    private void writeFolded(PrintWriter out, Frame frame, String path) {
+	path = (frame.parent == null) ? name(frame.address)
+				      : path + ";" + name(frame.address);
+
+	if (frame.instructions > 0)
+	    out.println(path + " " + frame.instructions);
+
+	for (Frame child=frame.firstChild; child!=null;
+	     child=child.nextSibling)
+	    writeFolded(out, child, path);
+    }
+
+    /**
+     * Return the index of the procedure containing the specified address, or
+     * -1 if it is before the first procedure.
+     */
+    private int findProcedure(int address) {
+	int low = 0, high = numProcedures;
+	while (low < high) {
+	    int middle = (low+high) >>> 1;
+	    if (procedureAddresses[middle] <= address)
+		low = middle+1;
+	    else
+		high = middle;
+	}
+
+	return low-1;
+    }
+
+    private String name(int address) {
+	int p = findProcedure(address);
+	if (p < 0 || procedureAddresses[p] != address)
+	    return location(address);
+
+	return procedureNames[p];
+    }
+
+    private String location(int address) {
+	int p = findProcedure(address);
+	if (p < 0)
+	    return "0x" + Lib.toHexString(address);
+
+	int offset = address - procedureAddresses[p];
+	return procedureNames[p] +
+	    (offset == 0 ? "" : "+0x" + Integer.toHexString(offset));
+    }
+
+    private String percent(long count) {
+	long tenths = (numRetired == 0) ? 0 : count * 1000 / numRetired;
+	return (tenths / 10) + "." + (tenths % 10);
+    }
+
+    private static String pad(long value, int width) {
+	return pad("" + value, width);
+    }
+
+    private static String pad(String s, int width) {
+	while (s.length() < width)
+	    s = " " + s;
+	return s;
+    }
+
+    /**
+     * Return the indices of an array, ordered by decreasing value.
+     */
+    private static Integer[] sort(final long[] values) {
+	int n = 0;
+	for (int i=0; i<values.length; i++) {
+	    if (values[i] != 0)
+		n++;
+	}
+
+	Integer[] order = new Integer[n];
+	for (int i=0, j=0; i<values.length; i++) {
+	    if (values[i] != 0)
+		order[j++] = new Integer(i);
+	}
+
+	Arrays.sort(order, new Comparator() {
+		public int compare(Object o1, Object o2) {
+		    long v1 = values[((Integer) o1).intValue()];
+		    long v2 = values[((Integer) o2).intValue()];
+		    return (v1 > v2) ? -1 : (v1 < v2) ? 1 : 0;
+		}
+	    });
+
+	return order;
+    }
+
+    /** An instruction that is not a call or a return. */
+    static final int plain = 0;
+    /** An instruction that links and jumps. */
+    static final int call = 1;
+    /** A <tt>jr $31</tt> instruction. */
+    static final int ret = 2;
+
+    private String fileName;
+
+    private long numRetired = 0;
+    private long[] counts = new long[0];
+    private long[] blockEntries = new long[0];
+    private long[] blockCounts = new long[0];
+
+    private Frame root = null;
+
+    private Vector sectionNames = new Vector();
+    private Vector sectionStarts = new Vector();
+    private Vector sectionEnds = new Vector();
+
+    private int numProcedures = 0;
+    private int[] procedureAddresses = new int[16];
+    private String[] procedureNames = new String[16];
+
+    private static final int maxDepth = 256;
+    private static final int numHotBlocks = 20;
+
+    /**
+     * Where one thread running user instructions is in its call path, and in
+     * its current basic block. <tt>Processor.run()</tt> keeps one of these
+     * for the thread it runs in.
+     */
+    static class Context {
+	private Frame frame = null;
+	private int pendingKind = plain, pendingTarget;
+	private int numHidden = 0;
+	private int lastPC = -1, leader = 0;
+    }
+
+    /** A procedure called along one call path. */
+    private static class Frame {
+	Frame(Frame parent, int address) {
+	    this.parent = parent;
+	    this.address = address;
+	    depth = (parent == null) ? 0 : parent.depth+1;
+	}
+
+	Frame parent, firstChild, nextSibling;
+	int address, depth;
+	long calls = 0, instructions = 0;
+    }
+}
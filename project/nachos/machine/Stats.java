@@ -4,6 +4,10 @@ package nachos.machine;
 
 import nachos.machine.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -20,15 +24,150 @@ public final class Stats {
     public void print() {
 	System.out.println("Ticks: total " + totalTicks
 			   + ", kernel " + kernelTicks
-			   + ", user " + userTicks);
+			   + ", user " + userTicks
+			   + ", idle " + idleTicks);
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	if (tlbSetHits != null) {
+	    System.out.println("TLB: hits " + numTLBHits
+			       + ", misses " + numTLBMisses
+			       + ", conflict misses " + numTLBConflictMisses);
+	    if (tlbSetHits.length > 1) {
+		for (int i=0; i<tlbSetHits.length; i++)
+		    System.out.println("  set " + i + ": hits " + tlbSetHits[i]
+				       + ", misses " + tlbSetMisses[i]
+				       + ", conflict misses "
+				       + tlbSetConflictMisses[i]);
+	    }
+	}
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numExceptions != null) {
+	    System.out.println("Instructions: retired " + numInstructions
+			       + ", loads " + numLoads
+			       + ", stores " + numStores
+			       + ", load stalls " + numLoadStalls);
+	    System.out.println("Branches: taken " + numBranchesTaken
+			       + ", not taken " + numBranchesNotTaken);
+	    if (numInstructionCacheHits + numInstructionCacheMisses > 0) {
+		System.out.println("Instruction cache: hits "
+				   + numInstructionCacheHits
+				   + ", misses " + numInstructionCacheMisses);
+		System.out.println("Data cache: hits " + numDataCacheHits
+				   + ", misses " + numDataCacheMisses);
+	    }
+
+	    String line = "Exceptions:";
+	    for (int i=0; i<numExceptions.length; i++) {
+		line += (i == 0 ? " " : ", ") +
+		    Processor.exceptionNames[i].trim() + " " + numExceptions[i];
+	    }
+	    System.out.println(line);
+	}
+    }
+
+    /**
+     * Write the statistics in this object to a checkpoint. A change to what
+     * is written must be matched by <tt>read()</tt> and a new
+     * <tt>Machine.checkpointVersion</tt>.
+     *
+     * @param	out	the stream to write to.
+     */
+    void write(DataOutputStream out) throws IOException {
+	out.writeLong(totalTicks);
+	out.writeLong(kernelTicks);
+	out.writeLong(userTicks);
+	out.writeLong(idleTicks);
+	out.writeInt(numDiskReads);
+	out.writeInt(numDiskWrites);
+	out.writeInt(numConsoleReads);
+	out.writeInt(numConsoleWrites);
+	out.writeInt(numPageFaults);
+	out.writeLong(numTLBMisses);
+	out.writeLong(numTLBHits);
+	out.writeLong(numTLBConflictMisses);
+	writeCounts(out, tlbSetHits);
+	writeCounts(out, tlbSetMisses);
+	writeCounts(out, tlbSetConflictMisses);
+	out.writeInt(numPacketsSent);
+	out.writeInt(numPacketsReceived);
+	out.writeLong(numInstructions);
+	out.writeLong(numLoads);
+	out.writeLong(numStores);
+	out.writeLong(numBranchesTaken);
+	out.writeLong(numBranchesNotTaken);
+	out.writeLong(numLoadStalls);
+	writeCounts(out, numExceptions);
+	out.writeLong(numInstructionCacheHits);
+	out.writeLong(numInstructionCacheMisses);
+	out.writeLong(numDataCacheHits);
+	out.writeLong(numDataCacheMisses);
+    }
+
+    /**
+     * Replace the statistics in this object with those in a checkpoint
+     * written by <tt>write()</tt>.
+     *
+     * @param	in	the stream to read from.
+     */
+    void read(DataInputStream in) throws IOException {
+	totalTicks = in.readLong();
+	kernelTicks = in.readLong();
+	userTicks = in.readLong();
+	idleTicks = in.readLong();
+	numDiskReads = in.readInt();
+	numDiskWrites = in.readInt();
+	numConsoleReads = in.readInt();
+	numConsoleWrites = in.readInt();
+	numPageFaults = in.readInt();
+	numTLBMisses = in.readLong();
+	numTLBHits = in.readLong();
+	numTLBConflictMisses = in.readLong();
+	tlbSetHits = readLongCounts(in);
+	tlbSetMisses = readLongCounts(in);
+	tlbSetConflictMisses = readLongCounts(in);
+	numPacketsSent = in.readInt();
+	numPacketsReceived = in.readInt();
+	numInstructions = in.readLong();
+	numLoads = in.readLong();
+	numStores = in.readLong();
+	numBranchesTaken = in.readLong();
+	numBranchesNotTaken = in.readLong();
+	numLoadStalls = in.readLong();
+	numExceptions = readLongCounts(in);
+	numInstructionCacheHits = in.readLong();
+	numInstructionCacheMisses = in.readLong();
+	numDataCacheHits = in.readLong();
+	numDataCacheMisses = in.readLong();
+    }
+
+    private static void writeCounts(DataOutputStream out, long[] counts)
+	throws IOException {
+	if (counts == null) {
+	    out.writeInt(-1);
+	    return;
+	}
+
+	out.writeInt(counts.length);
+	for (int i=0; i<counts.length; i++)
+	    out.writeLong(counts[i]);
+    }
+
+    private static long[] readLongCounts(DataInputStream in)
+	throws IOException {
+	int length = in.readInt();
+	if (length < 0)
+	    return null;
+
+	long[] counts = new long[length];
+	for (int i=0; i<length; i++)
+	    counts[i] = in.readLong();
+
+	return counts;
     }
 
     /**
@@ -44,6 +183,11 @@ public final class Stats {
      * The total amount of simulated time that Nachos has spent in user mode.
      */
     public long userTicks = 0;
+    /**
+     * The total amount of simulated time that Nachos has skipped while idle,
+     * waiting for an interrupt.
+     */
+    public long idleTicks = 0;
 
     /** The total number of sectors Nachos has read from the simulated disk.*/
     public int numDiskReads = 0;
@@ -56,12 +200,62 @@ public final class Stats {
     /** The total number of page faults that have occurred. */
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
-    public int numTLBMisses = 0;
+    public long numTLBMisses = 0;
+    /** The total number of TLB hits that have occurred. */
+    public long numTLBHits = 0;
+    /**
+     * The total number of TLB misses that a fully associative TLB of the same
+     * size would have avoided.
+     */
+    public long numTLBConflictMisses = 0;
+    /** TLB hits in each TLB set, or <tt>null</tt> if there is no TLB. */
+    public long[] tlbSetHits = null;
+    /** TLB misses in each TLB set, or <tt>null</tt> if there is no TLB. */
+    public long[] tlbSetMisses = null;
+    /**
+     * TLB conflict misses in each TLB set, or <tt>null</tt> if there is no
+     * TLB.
+     */
+    public long[] tlbSetConflictMisses = null;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
 
+    /**
+     * The total number of user instructions that completed, including
+     * syscalls, which the kernel completes.
+     */
+    public long numInstructions = 0;
+    /** The total number of user load instructions that completed. */
+    public long numLoads = 0;
+    /** The total number of user store instructions that completed. */
+    public long numStores = 0;
+    /** The total number of user branches and jumps that were taken. */
+    public long numBranchesTaken = 0;
+    /** The total number of user branches that were not taken. */
+    public long numBranchesNotTaken = 0;
+    /**
+     * The total number of user instructions that read the target register of
+     * a load in the instruction before, and so would stall a processor with
+     * interlocked loads.
+     */
+    public long numLoadStalls = 0;
+    /**
+     * The number of user exceptions of each cause, indexed by the
+     * <tt>Processor.exception<i>*</i></tt> constants, or <tt>null</tt> if
+     * there is no processor.
+     */
+    public long[] numExceptions = null;
+    /** The total number of user instruction fetches that hit in the cache. */
+    public long numInstructionCacheHits = 0;
+    /** The total number of user instruction fetches that missed the cache. */
+    public long numInstructionCacheMisses = 0;
+    /** The total number of user loads and stores that hit in the cache. */
+    public long numDataCacheHits = 0;
+    /** The total number of user loads and stores that missed the cache. */
+    public long numDataCacheMisses = 0;
+
     /**
      * The amount to advance simulated time after each user instructions is
      * executed.
@@ -5,7 +5,6 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +20,16 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code.
  * It's against the rules, <i>and</i> it can easily deadlock nachos.
+ *
+ * <p>
+ * Only one TCB runs at a time, and a context switch hands the processor
+ * directly to the next TCB. On a multiprocessor, a TCB that has handed off
+ * the processor spins briefly before blocking, because threads that yield to
+ * each other are often switched back to within microseconds, and waking a
+ * blocked JVM thread costs far more than that. The number of TCBs is limited
+ * by <tt>TCB.maxThreads</tt> (default <tt>maxThreads</tt>), and
+ * <tt>TCB.stackSize</tt> sets the stack size of their JVM threads, so that
+ * kernels with many thousands of threads fit in memory.
  */
 public final class TCB {
     /**
@@ -40,6 +49,13 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+	stackSize = Config.getInteger("TCB.stackSize", 0);
+	Lib.assert(threadLimit > 0 && stackSize >= 0);
+
+	if (Runtime.getRuntime().availableProcessors() > 1)
+	    spinLimit = Config.getInteger("TCB.spinLimit", defaultSpinLimit);
     }
     
     /**
@@ -50,9 +66,9 @@ public final class TCB {
 	// make sure this TCB has not already been started
 	Lib.assert(javaThread == null && !done);
 	// make sure there aren't too many threads already
-	Lib.assert(runningThreads.size() < maxThreads);
+	Lib.assert(numRunning < threadLimit);
 
-	isFirstTCB = runningThreads.isEmpty();
+	isFirstTCB = (numRunning == 0);
 	
 	if (!isFirstTCB) {
 	    // make sure the current TCB is correct
@@ -60,8 +76,8 @@ public final class TCB {
 		       currentTCB.javaThread == Thread.currentThread());
 	}
 
-	// TCB start has been approved. add to collection of running threads.
-	runningThreads.add(this);
+	// TCB start has been approved. count it among the running threads.
+	numRunning++;
 
 	this.target = target;
 
@@ -73,7 +89,11 @@ public final class TCB {
 
 	    // creating threads is a privileged operation
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() {
+			javaThread = new Thread(null, tcbTarget,
+						"TCB-" + (numThreads++),
+						stackSize);
+		    }
 		});
 
 	    // now start thread and wait for it to notify us from threadroot
@@ -213,15 +233,15 @@ public final class TCB {
 		privilege.exit(1);
 	    }
 
-	    runningThreads.removeElement(this);
-	    if (runningThreads.isEmpty())
+	    numRunning--;
+	    if (numRunning == 0)
 		privilege.exit(0);
 	}
 	catch (Throwable e) {
 	    e.printStackTrace();
 
-	    runningThreads.removeElement(this);
-	    if (runningThreads.isEmpty())
+	    numRunning--;
+	    if (numRunning == 0)
 		privilege.exit(1);
 	    else
 		die();
@@ -239,7 +259,16 @@ public final class TCB {
 	currentTCB = this;
     }
 
-    private synchronized void waitForInterrupt() {
+    private void waitForInterrupt() {
+	// running is volatile, so this sees interrupt() from another thread
+	for (int i=0; i<spinLimit && !running; i++)
+	    ;
+
+	if (!running)
+	    blockForInterrupt();
+    }
+
+    private synchronized void blockForInterrupt() {
 	while (!running) {
 	    try { wait(); }
 	    catch (InterruptedException e) { }
@@ -277,7 +306,7 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence, unless <tt>TCB.maxThreads</tt> is set.
      */
     public static final int maxThreads = 250;
 
@@ -285,12 +314,19 @@ public final class TCB {
     private static int numThreads = 0;
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
-    private static Vector runningThreads = new Vector();
+    private static int numRunning = 0;
+
+    private static int threadLimit = maxThreads;
+    /** The JVM thread stack size in bytes, or 0 for the default. */
+    private static long stackSize = 0;
+    /** Times to poll before blocking for a context switch. */
+    private static int spinLimit = 0;
+    private static final int defaultSpinLimit = 20000;
 
     private Thread javaThread = null;
     private KThread nachosThread = null;
     private boolean associated = false;
-    private boolean running = false;
+    private volatile boolean running = false;
     private boolean done = false;
     private Runnable target;
     private Runnable tcbTarget;
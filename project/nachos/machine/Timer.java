@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.TreeSet;
+
 /**
  * A hardware timer generates a CPU timer interrupt approximately every 500
  * clock ticks. This means that it can be used for implementing time-slicing,
@@ -13,6 +15,11 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * If <tt>Timer.tickless</tt> is <tt>true</tt>, the timer does not interrupt
+ * periodically. Instead the kernel programs a deadline with
+ * <tt>setDeadline()</tt>, and the timer interrupts once when it is reached.
  */
 public final class Timer {
     /**
@@ -37,7 +44,9 @@ public final class Timer {
 		}
 	    };
 
-	scheduleInterrupt();
+	tickless = Config.getBoolean("Timer.tickless", false);
+	if (!tickless)
+	    scheduleInterrupt();
     }
 
     /**
@@ -50,6 +59,39 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Test whether the timer only interrupts at deadlines set by the kernel.
+     *
+     * @return	<tt>true</tt> if the timer is in tickless mode.
+     */
+    public boolean isTickless() {
+	return tickless;
+    }
+
+    /**
+     * Program the timer to interrupt once at the specified time, replacing
+     * any deadline set before. The timer must be in tickless mode. A deadline
+     * that has already passed interrupts on the next tick.
+     *
+     * @param	time	the time at which to interrupt, or
+     *			<tt>Long.MAX_VALUE</tt> to cancel the deadline.
+     */
+    public void setDeadline(long time) {
+	Lib.assert(tickless);
+
+	deadline = time;
+	if (time == Long.MAX_VALUE)
+	    return;
+
+	// an interrupt already pending at or before the deadline will do
+	long now = getTime();
+	time = Math.max(time, now+1);
+	if (isPending(now, time))
+	    return;
+
+	schedulePending(now, time);
+    }
+
     /**
      * Get the current time.
      *
@@ -60,13 +102,99 @@ public final class Timer {
     }
 
     private void timerInterrupt() {
-	scheduleInterrupt();
+	if (tickless) {
+	    // interrupts fire in order, so this is the earliest pending one
+	    pendingTimes.remove(pendingTimes.first());
+
+	    // the deadline was moved back, or cancelled
+	    long now = getTime();
+	    if (now < deadline) {
+		if (deadline != Long.MAX_VALUE && !isPending(now, deadline))
+		    schedulePending(now, deadline);
+		return;
+	    }
+	    deadline = Long.MAX_VALUE;
+	}
+	else {
+	    scheduleInterrupt();
+	}
 	scheduleAutoGraderInterrupt();
 
 	if (handler != null)
 	    handler.run();
     }
 
+    /**
+     * Tests whether a tickless timer interrupts exactly once per deadline,
+     * however often the deadline is moved. Does nothing unless the timer is
+     * tickless.
+     */
+    public void selfTest() {
+	if (!tickless)
+	    return;
+
+	System.out.println("Timer.selfTest()");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Runnable savedHandler = handler;
+	final int[] numFired = new int[1];
+	handler = new Runnable() {
+		public void run() { numFired[0]++; }
+	    };
+
+	for (int i=0; i<4; i++) {
+	    long start = getTime();
+	    numFired[0] = 0;
+
+	    // leave interrupts for the superseded deadlines pending
+	    setDeadline(start + 400);
+	    setDeadline(start + 100);
+	    setDeadline(start + 300);
+	    setDeadline(start + 200);
+	    waitUntil(start + 250);
+	    Lib.assert(numFired[0] == 1);
+
+	    // a deadline after the superseded ones must still fire only once
+	    setDeadline(start + 600);
+	    waitUntil(start + 800);
+	    Lib.assert(numFired[0] == 2);
+	}
+
+	handler = savedHandler;
+	setDeadline(getTime());
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Let time pass until the specified time, with interrupts disabled
+     * between ticks.
+     */
+    private void waitUntil(long time) {
+	while (getTime() < time) {
+	    Machine.interrupt().enable();
+	    Machine.interrupt().disable();
+	}
+    }
+
+    /**
+     * Test whether a tickless timer interrupt is pending after <i>now</i>
+     * and no later than <i>time</i>.
+     */
+    private boolean isPending(long now, long time) {
+	return !pendingTimes.subSet(new Long(now+1), new Long(time+1)).isEmpty();
+    }
+
+    /**
+     * Schedule a tickless timer interrupt at the specified time, which must
+     * not have one pending already.
+     */
+    private void schedulePending(long now, long time) {
+	pendingTimes.add(new Long(time));
+	privilege.interrupt.schedule(time - now, "timer", timerInterrupt);
+    }
+
     private void scheduleInterrupt() {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
@@ -83,4 +211,13 @@ public final class Timer {
 
     private Privilege privilege;
     private Runnable handler = null;
+
+    private boolean tickless;
+    private long deadline = Long.MAX_VALUE;
+    /**
+     * The times of the pending tickless timer interrupts, including those
+     * scheduled for deadlines that have since been moved. There is at most
+     * one interrupt pending at each time.
+     */
+    private TreeSet pendingTimes = new TreeSet();
 }
@@ -111,6 +111,27 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time by the specified number of MIPS
+	 * instructions at once. This has the same effect as calling
+	 * <tt>tick(false)</tt> that many times, provided that no interrupt
+	 * became due before the last of them.
+	 *
+	 * @param	numInstructions	the number of user instructions
+	 *				executed.
+	 */
+	public void tick(int numInstructions);
+
+	/**
+	 * Return the simulated time before which ticking can be deferred. No
+	 * interrupt handler can run before this time unless an interrupt is
+	 * scheduled, and interrupts are only scheduled by kernel code.
+	 *
+	 * @return	the time the next pending interrupt is due, or 0 if every
+	 *		tick must be taken individually.
+	 */
+	public long getHorizon();
     }
 
     /**
@@ -67,3 +67,6 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(checkpoint, syscallCheckpoint)
+	SYSCALLSTUB(readcounters, syscallReadCounters)
+	SYSCALLSTUB(readthreadstats, syscallReadThreadStats)
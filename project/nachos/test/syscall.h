@@ -23,6 +23,9 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallCheckpoint	13
+#define syscallReadCounters	14
+#define syscallReadThreadStats	15
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -240,6 +243,70 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/**
+ * Save the state of the calling process to the specified file in the test directory,
+ * so that Nachos can later be started from that point with the -r option instead of
+ * running the shell program. Only the address space and registers of the process are
+ * saved, so the calling process must be the only process, and only the console will
+ * be open when it resumes.
+ *
+ * Returns 0 after writing the checkpoint, 1 in the process restored from it, or -1 if
+ * an error occurred.
+ */
+int checkpoint(char *name);
+
+/* Indices of the processor's performance counters, for readcounters(). */
+#define counterTotalTicks	0	/* simulated time since Nachos started */
+#define counterUserTicks	1	/* simulated time running user instructions */
+#define counterInstructions	2	/* user instructions completed */
+#define counterLoads		3	/* user loads completed */
+#define counterStores		4	/* user stores completed */
+#define counterBranchesTaken	5	/* user branches and jumps taken */
+#define counterBranchesNotTaken	6	/* user branches not taken */
+#define counterLoadStalls	7	/* instructions using a load in its delay slot */
+#define counterExceptions	8	/* plus the cause: exceptions of each cause */
+#define counterSyscalls		8	/* syscall exceptions */
+#define numCounters		16
+
+/**
+ * Copy the first count performance counters of the processor into the counters array.
+ * The counters count events since Nachos started, for all processes, so a program
+ * measures itself by reading them before and after the code being measured. The
+ * syscall that reads the counters is itself counted.
+ *
+ * Returns the number of counters copied, which is less than count if count is greater
+ * than numCounters, or -1 if an error occurred.
+ */
+int readcounters(long long *counters, int count);
+
+/* Indices of the scheduling statistics of a thread, for readthreadstats(). Times are in
+ * simulated ticks.
+ */
+#define statReadyTicks		0	/* time waiting to run on the ready queue */
+#define statRunTicks		1	/* time running */
+#define statVoluntarySwitches	2	/* times the thread yielded or blocked */
+#define statInvoluntarySwitches	3	/* times the thread was preempted */
+#define statBlockedTicks	4	/* plus the cause: time blocked for each cause */
+#define blockedOnOther		0
+#define blockedOnLock		1
+#define blockedOnSemaphore	2
+#define blockedOnCondition	3
+#define blockedOnAlarm		4
+#define blockedOnJoin		5
+#define statReadyHistogram	10	/* plus the bucket: ready queue waits in each bucket */
+#define numReadyBuckets		20	/* bucket 0 is no wait, bucket b is 2^(b-1) to 2^b-1
+					   ticks, and the last bucket has all longer waits */
+#define numThreadStats		30
+
+/**
+ * Copy the first count scheduling statistics of the calling thread into the stats
+ * array. The statistics cover the thread's whole life, up to the syscall.
+ *
+ * Returns the number of statistics copied, which is less than count if count is
+ * greater than numThreadStats, or -1 if an error occurred.
+ */
+int readthreadstats(long long *stats, int count);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -9,6 +9,19 @@ import java.util.Iterator;
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * If the timer is tickless, the alarm programs it for the earliest of the
+ * next wake time and the end of the current time slice. A time slice is only
+ * started while other threads are ready to run, so a thread running alone is
+ * never interrupted.
+ *
+ * <p>
+ * The scheduler chooses how long each time slice is, through
+ * <tt>Scheduler.getTimeSlice()</tt>. If it does not, a periodic timer
+ * preempts the current thread at every timer interrupt, and a tickless one
+ * at the end of a slice of <tt>Stats.TimerTicks</tt>. A periodic timer can
+ * only end a longer time slice at the first timer interrupt after it.
  */
 public class Alarm {
     /**
@@ -23,13 +36,17 @@ public class Alarm {
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
+
+	// threads may already be ready, so start with a time slice
+	tickless = Machine.timer().isTickless();
+	startTimeSlice(KThread.currentThread(), true);
     }
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
      * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * thread to yield at the end of its time slice, forcing a context switch
+     * if there is another thread that should be run.
      */
     public void timerInterrupt() {
 	boolean intStatus = Machine.interrupt().disable();
@@ -50,8 +67,69 @@ public class Alarm {
 	}
 	
 	Machine.interrupt().setStatus(intStatus);
+
+	if (sliceEnd > Machine.timer().getTime()) {
+	    if (tickless)
+		programTimer();
+	    return;
+	}
+	if (tickless)
+	    sliceEnd = Long.MAX_VALUE;
 	
-	KThread.currentThread().yield();
+	KThread.preempt();
+    }
+
+    /**
+     * Called by <tt>KThread</tt> when it dispatches a thread. Start a new time
+     * slice for the thread. In tickless mode, only do so if other threads are
+     * waiting to run.
+     *
+     * @param	thread		the thread being dispatched.
+     * @param	contended	<tt>true</tt> if other threads are ready.
+     */
+    void startTimeSlice(KThread thread, boolean contended) {
+	long slice = ThreadedKernel.scheduler.getTimeSlice(thread);
+
+	if (!tickless) {
+	    sliceEnd = (slice > 0) ? Machine.timer().getTime() + slice : 0;
+	    return;
+	}
+
+	if (slice == 0)
+	    slice = Stats.TimerTicks;
+
+	sliceEnd = contended ? Machine.timer().getTime() + slice
+			     : Long.MAX_VALUE;
+	programTimer();
+    }
+
+    /**
+     * Called by <tt>KThread</tt> when a thread becomes ready while another
+     * thread is running. If the scheduler says the ready thread should
+     * preempt the running one, end the time slice now. Otherwise, in tickless
+     * mode, start a time slice if none is running, so that the ready thread
+     * gets a turn.
+     *
+     * @param	thread	the thread that has become ready.
+     */
+    void contend(KThread thread) {
+	if (ThreadedKernel.scheduler.shouldPreempt(thread)) {
+	    sliceEnd = Machine.timer().getTime();
+	    if (tickless)
+		programTimer();
+	}
+	else if (tickless && sliceEnd == Long.MAX_VALUE) {
+	    startTimeSlice(KThread.currentThread(), true);
+	}
+    }
+
+    private void programTimer() {
+	long deadline = sliceEnd;
+	if (!waitingThreads.isEmpty())
+	    deadline = Math.min(deadline,
+				((Long) waitingThreads.firstKey()).longValue());
+
+	Machine.timer().setDeadline(deadline);
     }
 
     /**
@@ -78,8 +156,11 @@ public class Alarm {
 	    waitingThreads.put(wakeTime, list);
 	}
 	list.addLast(KThread.currentThread());
+
+	if (tickless)
+	    programTimer();
 	
-	KThread.sleep();
+	KThread.sleep(KThread.blockedOnAlarm);
 	
 	Machine.interrupt().setStatus(intStatus);
     }
@@ -133,4 +214,11 @@ public class Alarm {
     }
     
     private TreeMap waitingThreads;
+
+    private boolean tickless;
+    /**
+     * The end of the current time slice. In tickless mode, this is
+     * <tt>Long.MAX_VALUE</tt> if there is none.
+     */
+    private long sliceEnd = Long.MAX_VALUE;
 }
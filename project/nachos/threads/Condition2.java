@@ -40,7 +40,7 @@ public class Condition2 {
 	
 	conditionLock.release();
 	waitQueue.waitForAccess(KThread.currentThread());
-	KThread.currentThread().sleep();
+	KThread.sleep(KThread.blockedOnCondition);
 	conditionLock.acquire();
 	
 	Machine.interrupt().setStatus(intStatus);
@@ -0,0 +1,535 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that runs threads with processor reservations earliest deadline
+ * first, ahead of all other threads, which are scheduled by a background
+ * scheduler.
+ *
+ * <p>
+ * A thread reserves <i>runtime</i> ticks of processor time within
+ * <i>deadline</i> ticks of each time it wakes up, at most once every
+ * <i>period</i> ticks, by calling <tt>KThread.setReservation()</tt>. A
+ * reservation is only admitted if the processor can still meet every
+ * deadline: the sum of <i>runtime</i>/<i>deadline</i> over all reservations
+ * must stay within <tt>DeadlineScheduler.maxUtilization</tt> percent, which
+ * leaves the rest of the processor to the background threads.
+ *
+ * <p>
+ * Each time a thread with a reservation starts waiting on a queue after its
+ * period has ended, it gets a new budget of <i>runtime</i> ticks and a new
+ * absolute deadline. While it has budget left, it is dequeued ahead of every
+ * thread without one, in order of deadline, and it preempts the current
+ * thread if that has no budget or a later deadline. Its time slice is the
+ * rest of its budget, so the timer stops it once it has used up its budget,
+ * and it is then scheduled like any other thread until its next period.
+ * Budgets are enforced most accurately with a tickless timer.
+ *
+ * <p>
+ * The background scheduler is named by <tt>DeadlineScheduler.background</tt>
+ * in <tt>nachos.conf</tt>. Queues that transfer priority, such as the queues
+ * of locks and joins, are left to the background scheduler, so that its
+ * priority transfer works unchanged.
+ */
+public class DeadlineScheduler extends Scheduler {
+    /**
+     * Allocate a new deadline scheduler, and the background scheduler it
+     * falls back on.
+     */
+    public DeadlineScheduler() {
+	String backgroundName = Config.getString("DeadlineScheduler.background");
+	if (backgroundName == null)
+	    backgroundName = "nachos.threads.RoundRobinScheduler";
+	background = (Scheduler) Lib.constructObject(backgroundName);
+
+	maxUtilization =
+	    Config.getInteger("DeadlineScheduler.maxUtilization", 95) *
+	    (utilizationScale / 100);
+	Lib.assert(maxUtilization > 0 && maxUtilization <= utilizationScale);
+    }
+
+    /**
+     * Allocate a new thread queue. A queue that does not transfer priority
+     * dequeues threads with budget left by deadline, ahead of the threads of
+     * a background queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer priority from waiting threads
+     *					to the owning thread.
+     * @return	a new thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	ThreadQueue backgroundQueue =
+	    background.newThreadQueue(transferPriority);
+
+	if (transferPriority)
+	    return backgroundQueue;
+	else
+	    return new DeadlineQueue(backgroundQueue);
+    }
+
+    public int getPriority(KThread thread) {
+	return background.getPriority(thread);
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return background.getEffectivePriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	background.setPriority(thread, priority);
+    }
+
+    public boolean increasePriority() {
+	return background.increasePriority();
+    }
+
+    public boolean decreasePriority() {
+	return background.decreasePriority();
+    }
+
+    /**
+     * Reserve processor time for the specified thread, if the reservation can
+     * be admitted. A <i>runtime</i> of <tt>0</tt> cancels the thread's
+     * reservation. A thread waiting by deadline is queued again by its new
+     * deadline, or moved to the background queue if it has no budget left; a
+     * thread waiting on a background queue stays there until it next waits.
+     */
+    public boolean setReservation(KThread thread, long runtime, long deadline,
+				  long period) {
+	Lib.assert(Machine.interrupt().disabled());
+
+	Reservation reservation = getReservation(thread);
+
+	if (runtime == 0) {
+	    DeadlineQueue queue = reservation.dequeue();
+	    utilization -= reservation.utilization;
+	    reservation.cancel();
+	    if (queue != null)
+		queue.enqueue(reservation);
+	    return true;
+	}
+
+	if (runtime < 0 || runtime > deadline || deadline > period)
+	    return false;
+
+	long newUtilization = runtime * utilizationScale / deadline;
+	if (newUtilization == 0)
+	    newUtilization = 1;
+
+	if (utilization - reservation.utilization + newUtilization >
+	    maxUtilization)
+	    return false;
+
+	// the deadline is the sort key of the queue the thread waits on
+	DeadlineQueue queue = reservation.dequeue();
+	utilization += newUtilization - reservation.utilization;
+	reservation.reserve(runtime, deadline, period, newUtilization);
+	if (queue != null)
+	    queue.enqueue(reservation);
+	return true;
+    }
+
+    /**
+     * Return the rest of the budget of the specified thread, if it has any
+     * left. Otherwise, let the background scheduler decide.
+     */
+    public long getTimeSlice(KThread thread) {
+	Lib.assert(Machine.interrupt().disabled());
+
+	Reservation reservation = getReservation(thread);
+	if (thread == KThread.currentThread())
+	    reservation.charge();
+
+	if (reservation.isActive())
+	    return reservation.budget;
+	else
+	    return background.getTimeSlice(thread);
+    }
+
+    /**
+     * Return <tt>true</tt> if the specified thread has budget left and an
+     * earlier deadline than the current thread, or if the background
+     * scheduler says so and the current thread has no budget left.
+     */
+    public boolean shouldPreempt(KThread thread) {
+	Lib.assert(Machine.interrupt().disabled());
+
+	Reservation current = getReservation(KThread.currentThread());
+	current.charge();
+
+	if (getReservation(thread).isActive()) {
+	    return (!current.isActive() ||
+		    getReservation(thread).deadline < current.deadline);
+	}
+
+	return (!current.isActive() && background.shouldPreempt(thread));
+    }
+
+    /**
+     * Return the reservation of the specified thread.
+     *
+     * @param	thread	the thread whose reservation to return.
+     * @return	the reservation of the specified thread.
+     */
+    protected Reservation getReservation(KThread thread) {
+	if (thread.reservationState == null)
+	    thread.reservationState = new Reservation(thread);
+
+	return (Reservation) thread.reservationState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps the waiting threads with budget left
+     * in a tree ordered by deadline, and passes the rest on to a background
+     * queue.
+     */
+    protected class DeadlineQueue extends ThreadQueue {
+	DeadlineQueue(ThreadQueue backgroundQueue) {
+	    this.backgroundQueue = backgroundQueue;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assert(Machine.interrupt().disabled());
+
+	    Reservation reservation = getReservation(thread);
+
+	    // a thread that yields is charged before it is queued
+	    if (thread == KThread.currentThread())
+		reservation.charge();
+
+	    reservation.replenish();
+	    reservation.arrival = numArrivals++;
+	    enqueue(reservation);
+	}
+
+	/**
+	 * Queue the thread of the specified reservation by deadline if it has
+	 * budget left, or on the background queue otherwise.
+	 */
+	void enqueue(Reservation reservation) {
+	    if (reservation.isActive()) {
+		waitQueue.add(reservation);
+		reservation.queue = this;
+	    }
+	    else {
+		backgroundQueue.waitForAccess(reservation.thread);
+	    }
+	}
+
+	/**
+	 * Remove the specified reservation, which is waiting by deadline on
+	 * this queue.
+	 */
+	void remove(Reservation reservation) {
+	    Lib.assert(reservation.queue == this);
+
+	    waitQueue.remove(reservation);
+	    reservation.queue = null;
+	}
+
+	public KThread nextThread() {
+	    Lib.assert(Machine.interrupt().disabled());
+
+	    getReservation(KThread.currentThread()).charge();
+
+	    KThread thread;
+	    if (!waitQueue.isEmpty()) {
+		Reservation reservation = (Reservation) waitQueue.first();
+		remove(reservation);
+		thread = reservation.thread;
+	    }
+	    else {
+		thread = backgroundQueue.nextThread();
+		if (thread == null)
+		    return null;
+	    }
+
+	    getReservation(thread).dispatch();
+	    return thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assert(Machine.interrupt().disabled());
+
+	    Lib.assert(waitQueue.isEmpty());
+	    backgroundQueue.acquire(thread);
+	}
+
+	public void print() {
+	    Lib.assert(Machine.interrupt().disabled());
+
+	    Object[] reservations = waitQueue.toArray();
+	    for (int i=0; i<reservations.length; i++)
+		System.out.print("\t" + ((Reservation) reservations[i]).thread);
+	    System.out.println();
+
+	    backgroundQueue.print();
+	}
+
+	private ThreadQueue backgroundQueue;
+	private TreeSet waitQueue = new TreeSet(new Comparator() {
+		public int compare(Object o1, Object o2) {
+		    Reservation r1 = (Reservation) o1;
+		    Reservation r2 = (Reservation) o2;
+
+		    if (r1.deadline != r2.deadline)
+			return (r1.deadline < r2.deadline) ? -1 : 1;
+		    if (r1.arrival != r2.arrival)
+			return (r1.arrival < r2.arrival) ? -1 : 1;
+		    return 0;
+		}
+	    });
+    }
+
+    /**
+     * The processor reservation of a thread, and how much of its budget for
+     * the current period it has used.
+     */
+    protected class Reservation {
+	/**
+	 * Allocate a new <tt>Reservation</tt> object for the specified thread,
+	 * which has no reservation yet.
+	 *
+	 * @param	thread	the thread this reservation belongs to.
+	 */
+	public Reservation(KThread thread) {
+	    this.thread = thread;
+
+	    dispatch();
+	}
+
+	/**
+	 * Set the reservation of the associated thread, and start a new period
+	 * now.
+	 */
+	protected void reserve(long runtime, long deadline, long period,
+			       long utilization) {
+	    this.runtime = runtime;
+	    this.relativeDeadline = deadline;
+	    this.period = period;
+	    this.utilization = utilization;
+
+	    periodEnd = Machine.timer().getTime();
+	    replenish();
+	    dispatch();
+	}
+
+	/**
+	 * Cancel the reservation of the associated thread.
+	 */
+	protected void cancel() {
+	    runtime = 0;
+	    utilization = 0;
+	    budget = 0;
+	}
+
+	/**
+	 * If the period of the associated thread has ended, give it a new
+	 * budget and deadline.
+	 */
+	protected void replenish() {
+	    long time = Machine.timer().getTime();
+
+	    if (runtime > 0 && time >= periodEnd) {
+		budget = runtime;
+		deadline = time + relativeDeadline;
+		periodEnd = time + period;
+	    }
+	}
+
+	/**
+	 * If the associated thread is waiting by deadline, remove it from the
+	 * queue it is waiting on, so that its deadline can be changed.
+	 *
+	 * @return	the queue the thread was waiting on, or <tt>null</tt> if
+	 *		it was not waiting by deadline.
+	 */
+	protected DeadlineQueue dequeue() {
+	    DeadlineQueue queue = this.queue;
+	    if (queue != null)
+		queue.remove(this);
+
+	    return queue;
+	}
+
+	/**
+	 * Return <tt>true</tt> if the associated thread has a reservation and
+	 * budget left.
+	 */
+	protected boolean isActive() {
+	    return (budget > 0);
+	}
+
+	/**
+	 * Note that the associated thread is about to start running.
+	 */
+	protected void dispatch() {
+	    dispatchTime = Machine.timer().getTime();
+	}
+
+	/**
+	 * Take the time the associated thread has run since it was dispatched
+	 * or last charged out of its budget.
+	 */
+	protected void charge() {
+	    long time = Machine.timer().getTime();
+
+	    if (budget > 0)
+		budget = Math.max(budget - (time - dispatchTime), 0);
+	    dispatchTime = time;
+	}
+
+	public String toString() {
+	    return ("budget: " + budget + " deadline: " + deadline);
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+
+	/** The ticks reserved in each period, or <tt>0</tt> if none. */
+	protected long runtime = 0;
+	/** The ticks after waking up by which the runtime must be used. */
+	protected long relativeDeadline;
+	/** The shortest time between the starts of two periods. */
+	protected long period;
+	/** The share of the processor reserved, out of utilizationScale. */
+	protected long utilization = 0;
+
+	/** The ticks left of the runtime in the current period. */
+	protected long budget = 0;
+	/** The absolute deadline of the current period. */
+	protected long deadline;
+	/** The earliest time at which the next period can start. */
+	protected long periodEnd;
+
+	/** The order in which the thread joined the queue it waits on. */
+	protected long arrival;
+	/**
+	 * The queue on which the thread waits by deadline, or <tt>null</tt> if
+	 * it is not waiting by deadline. The deadline must not change while
+	 * the thread is in that queue.
+	 */
+	protected DeadlineQueue queue = null;
+
+	private long dispatchTime;
+    }
+
+    /**
+     * Test admission control, that threads with budget left are dequeued by
+     * deadline ahead of background threads, that a thread that has used up
+     * its budget falls back to the background queue, and that changing the
+     * deadline of a waiting thread requeues it. Does nothing unless the
+     * kernel uses a deadline scheduler.
+     */
+    public static void selfTest() {
+	if (ThreadedKernel.scheduler.getClass() != DeadlineScheduler.class)
+	    return;
+
+	System.out.println("DeadlineScheduler.selfTest()");
+
+	DeadlineScheduler scheduler =
+	    (DeadlineScheduler) ThreadedKernel.scheduler;
+	KThread current = KThread.currentThread();
+	KThread full = new KThread().setName("full");
+	KThread early = new KThread().setName("early");
+	KThread late = new KThread().setName("late");
+	KThread other = new KThread().setName("background");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	long initialUtilization = scheduler.utilization;
+	long spare = scheduler.maxUtilization - initialUtilization;
+	Lib.assert(spare > 0);
+
+	// admit up to maxUtilization exactly, and nothing beyond it
+	Lib.assert(!scheduler.setReservation(full, spare + 1,
+					     utilizationScale,
+					     utilizationScale));
+	Lib.assert(scheduler.utilization == initialUtilization);
+	Lib.assert(scheduler.setReservation(full, spare, utilizationScale,
+					    utilizationScale));
+	Lib.assert(!scheduler.setReservation(early, 1, utilizationScale,
+					     utilizationScale));
+	Lib.assert(!scheduler.setReservation(early, 200, 100, 1000));
+	Lib.assert(scheduler.setReservation(full, 0, 0, 0));
+	Lib.assert(scheduler.utilization == initialUtilization);
+
+	// reserved threads by deadline, then the background thread
+	Lib.assert(scheduler.setReservation(late, 50, 1000, 1000));
+	Lib.assert(scheduler.setReservation(early, 50, 500, 1000));
+
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	queue.waitForAccess(other);
+	queue.waitForAccess(late);
+	queue.waitForAccess(early);
+	Lib.assert(queue.nextThread() == early);
+	Lib.assert(queue.nextThread() == late);
+	Lib.assert(queue.nextThread() == other);
+	Lib.assert(queue.nextThread() == null);
+
+	// moving a waiting thread's deadline ahead moves it ahead in the queue
+	queue.waitForAccess(early);
+	queue.waitForAccess(late);
+	Lib.assert(scheduler.setReservation(late, 50, 200, 1000));
+	Lib.assert(queue.nextThread() == late);
+	Lib.assert(queue.nextThread() == early);
+	Lib.assert(queue.nextThread() == null);
+
+	// use up a budget of our own
+	Lib.assert(scheduler.setReservation(current, 200, 1000, 100000));
+	Reservation reservation = scheduler.getReservation(current);
+	long startTime = Machine.timer().getTime();
+
+	Machine.interrupt().restore(intStatus);
+
+	boolean active = true;
+	while (active) {
+	    Machine.interrupt().disable();
+	    scheduler.getTimeSlice(current);
+	    active = reservation.isActive();
+	    Machine.interrupt().enable();
+	}
+
+	intStatus = Machine.interrupt().disable();
+
+	long usedTime = Machine.timer().getTime() - startTime;
+	System.out.println("*** budget of 200 ticks used up after "
+			   + usedTime + " ticks");
+	Lib.assert(usedTime >= 200);
+
+	// without budget, we wait behind the background thread
+	queue.waitForAccess(other);
+	queue.waitForAccess(current);
+	queue.waitForAccess(early);
+	Lib.assert(!reservation.isActive());
+	Lib.assert(queue.nextThread() == early);
+	Lib.assert(queue.nextThread() == other);
+	Lib.assert(queue.nextThread() == current);
+	Lib.assert(queue.nextThread() == null);
+
+	Lib.assert(scheduler.setReservation(current, 0, 0, 0));
+	Lib.assert(scheduler.setReservation(early, 0, 0, 0));
+	Lib.assert(scheduler.setReservation(late, 0, 0, 0));
+	Lib.assert(scheduler.utilization == initialUtilization);
+
+	Machine.interrupt().restore(intStatus);
+
+	System.out.println();
+    }
+
+    /** The scheduler of the threads without budget left. */
+    private Scheduler background;
+
+    /** The fixed-point scale of processor utilizations. */
+    private static final long utilizationScale = 1000000;
+    private long maxUtilization;
+    /** The sum of the utilizations of all admitted reservations. */
+    private long utilization = 0;
+
+    private long numArrivals = 0;
+}
@@ -0,0 +1,228 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that shares the processor among threads in proportion to
+ * weights derived from their priorities, and that sizes time slices so that
+ * every ready thread runs within a fixed scheduling latency.
+ *
+ * <p>
+ * This is a stride scheduler in which the tickets of a thread are its
+ * <i>weight</i>, and its pass is its <i>virtual runtime</i>: the ticks it has
+ * run, scaled down by its weight. The thread with the smallest virtual
+ * runtime is always dequeued next, from the heap of the stride scheduler.
+ * The default priority has weight 1024, and each priority above or below it
+ * multiplies or divides the weight by 1.25, so that a thread gets about 25%
+ * more processor time than a thread one priority below it, whatever the
+ * priorities are. Weights are transferred through locks and joins like
+ * tickets.
+ *
+ * <p>
+ * A thread dequeued from a queue gets a time slice of
+ * <tt>FairScheduler.latency</tt> ticks, shared among it and the threads still
+ * waiting on that queue in proportion to their weights, but never less than
+ * <tt>FairScheduler.minGranularity</tt> ticks. The time slices are enforced
+ * most accurately with a tickless timer.
+ */
+public class FairScheduler extends StrideScheduler {
+    /**
+     * Allocate a new fair scheduler.
+     */
+    public FairScheduler() {
+	latency = Config.getInteger("FairScheduler.latency", 2000);
+	minGranularity = Config.getInteger("FairScheduler.minGranularity", 200);
+	Lib.assert(latency > 0 && minGranularity > 0);
+
+	weights = new int[priorityMaximum - priorityMinimum + 1];
+	for (int i=0; i<weights.length; i++) {
+	    int exponent = Math.min(priorityMinimum + i - priorityDefault,
+				    maxWeightExponent);
+	    weights[i] = (int) Math.round(1024 * Math.pow(1.25, exponent));
+	    Lib.assert(weights[i] > 0);
+	}
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer weight from waiting threads
+     *					to the owning thread.
+     * @return	a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue(transferPriority);
+    }
+
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new FairThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Return the weight of a thread with the specified priority.
+     *
+     * @param	priority	the priority of the thread.
+     * @return	the weight of the thread.
+     */
+    protected int getTickets(int priority) {
+	return weights[priority - priorityMinimum];
+    }
+
+    /**
+     * Return the share of the scheduling latency of the specified thread,
+     * among the threads waiting on the queue it was last dequeued from.
+     */
+    public long getTimeSlice(KThread thread) {
+	Lib.assert(Machine.interrupt().disabled());
+
+	FairThreadState state = (FairThreadState) getThreadState(thread);
+	if (state.runQueue == null)
+	    return 0;
+
+	long weight = state.totalTickets;
+	long slice = latency * weight /
+	    (weight + state.runQueue.getTotalTickets());
+
+	return Math.max(slice, minGranularity);
+    }
+
+    /**
+     * A <tt>StrideQueue</tt> that tells each thread it dequeues which queue
+     * it came from.
+     */
+    protected class FairQueue extends StrideQueue {
+	FairQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	public KThread nextThread() {
+	    KThread thread = super.nextThread();
+	    if (thread != null)
+		((FairThreadState) getThreadState(thread)).runQueue = this;
+
+	    return thread;
+	}
+    }
+
+    /**
+     * The scheduling state of a thread under a fair scheduler.
+     */
+    protected class FairThreadState extends StrideThreadState {
+	public FairThreadState(KThread thread) {
+	    super(thread);
+	}
+
+	/** The queue the associated thread was last dequeued from. */
+	protected FairQueue runQueue = null;
+    }
+
+    private static class PingTest implements Runnable {
+	PingTest() {
+	}
+
+	public void run() {
+	    // never yield, so that only the time slices switch threads
+	    while (!stopped) {
+		Machine.interrupt().disable();
+		Machine.interrupt().enable();
+		loops++;
+	    }
+	}
+
+	private int loops = 0;
+
+	static boolean stopped;
+    }
+
+    /**
+     * Test that of two threads that never yield, the one a priority higher
+     * runs about 1.25 times as long, and that time slices are split by weight
+     * but never shorter than <tt>minGranularity</tt>. Does nothing unless the
+     * kernel uses a fair scheduler.
+     */
+    public static void selfTest() {
+	if (ThreadedKernel.scheduler.getClass() != FairScheduler.class)
+	    return;
+
+	System.out.println("FairScheduler.selfTest()");
+
+	FairScheduler scheduler = (FairScheduler) ThreadedKernel.scheduler;
+	Lib.assert(priorityDefault < priorityMaximum);
+
+	PingTest low = new PingTest(), high = new PingTest();
+	KThread lowThread = new KThread(low).setName("low");
+	KThread highThread = new KThread(high).setName("high");
+
+	PingTest.stopped = false;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	scheduler.setPriority(highThread, priorityDefault + 1);
+	lowThread.fork();
+	highThread.fork();
+
+	Machine.interrupt().restore(intStatus);
+
+	ThreadedKernel.alarm.waitUntil(50000);
+	PingTest.stopped = true;
+	lowThread.join();
+	highThread.join();
+
+	System.out.println("*** high looped " + high.loops + " times, low "
+			   + low.loops + " times");
+
+	// the ratio of loops is within a tenth of 1.25
+	Lib.assert(Math.abs(high.loops * 4 - low.loops * 5) <= low.loops / 2);
+
+	// one light thread ahead of many heavy ones in a queue of their own
+	intStatus = Machine.interrupt().disable();
+
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	KThread[] threads = new KThread[8];
+	int weight = 0;
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread().setName("slice test " + i);
+	    scheduler.setPriority(threads[i],
+				  (i == 0) ? priorityMinimum : priorityMaximum);
+	    weight += scheduler.getTickets(scheduler.getPriority(threads[i]));
+	    queue.waitForAccess(threads[i]);
+	}
+
+	for (int i=0; i<threads.length; i++) {
+	    Lib.assert(queue.nextThread() == threads[i]);
+
+	    long own = scheduler.getTickets(scheduler.getPriority(threads[i]));
+	    long slice = scheduler.getTimeSlice(threads[i]);
+	    Lib.assert(slice >= scheduler.minGranularity);
+	    Lib.assert(slice == Math.max(scheduler.latency * own / weight,
+					 scheduler.minGranularity));
+	    weight -= own;
+
+	    // the light thread gets only the minimum, the last one all of it
+	    if (i == 0)
+		Lib.assert(slice == scheduler.minGranularity);
+	    if (i == threads.length-1)
+		Lib.assert(slice == scheduler.latency);
+	}
+	Lib.assert(queue.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+
+	System.out.println();
+    }
+
+    /**
+     * The largest number of times the weight of the default priority is
+     * multiplied by 1.25, which keeps the total weight of many threads well
+     * within an <tt>int</tt>.
+     */
+    private static final int maxWeightExponent = 20;
+
+    private long latency;
+    private long minGranularity;
+    private int[] weights;
+}
@@ -188,6 +188,8 @@ public class KThread {
 
 	Machine.autoGrader().finishingCurrentThread();
 
+	ThreadedKernel.scheduler.setReservation(currentThread, 0, 0, 0);
+
 	Lib.assert(toBeDestroyed == null);
 	toBeDestroyed = currentThread;
 
@@ -244,16 +246,45 @@ public class KThread {
      * scheduled this thread to be destroyed by the next thread to run.
      */
     public static void sleep() {
+	sleep(blockedOnOther);
+    }
+
+    /**
+     * Relinquish the CPU, like <tt>sleep()</tt>, noting why the current thread
+     * is blocked in its statistics.
+     *
+     * @param	cause	why the current thread is blocked, one of the
+     *			<tt>blockedOn</tt> constants.
+     *
+     * @see	nachos.threads.ThreadStats
+     */
+    public static void sleep(int cause) {
 	Lib.debug(dbgThread, "Sleeping thread: " + currentThread);
 	
 	Lib.assert(Machine.interrupt().disabled());
 
-	if (currentThread.status != statusFinished)
+	if (currentThread.status != statusFinished) {
 	    currentThread.status = statusBlocked;
+	    currentThread.stats.block(cause, Machine.timer().getTime());
+	}
 
 	runNextThread();
     }
 
+    /**
+     * Relinquish the CPU at the end of the current thread's time slice. This
+     * is the same as <tt>yield()</tt>, except that the current thread's
+     * statistics count the switch as involuntary.
+     */
+    static void preempt() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	preempting = true;
+	yield();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * Moves this thread to the ready state and adds this to the scheduler's
      * ready queue.
@@ -265,12 +296,49 @@ public class KThread {
 	Lib.assert(status != statusReady);
 	
 	status = statusReady;
-	if (this != idleThread)
+	if (this != idleThread) {
+	    stats.ready(Machine.timer().getTime());
+
 	    readyQueue.waitForAccess(this);
+	    numReady++;
+
+	    if (ThreadedKernel.alarm != null && this != currentThread &&
+		currentThread != idleThread)
+		ThreadedKernel.alarm.contend(this);
+	}
 	
 	Machine.autoGrader().readyThread(this);
     }
 
+    /**
+     * Reserve <i>runtime</i> ticks of processor time for this thread within
+     * <i>deadline</i> ticks of each time it wakes up, at most once every
+     * <i>period</i> ticks, replacing any earlier reservation. The scheduler
+     * may reject a reservation it cannot meet, and only some schedulers
+     * support reservations at all. The reservation is cancelled when this
+     * thread finishes.
+     *
+     * @param	runtime	the ticks to reserve, or <tt>0</tt> to cancel this
+     *			thread's reservation.
+     * @param	deadline	the ticks within which to run, at least
+     *				<i>runtime</i>.
+     * @param	period	the shortest time between two wake ups, at least
+     *			<i>deadline</i>.
+     * @return	<tt>true</tt> if the reservation was admitted.
+     *
+     * @see	nachos.threads.Scheduler#setReservation
+     */
+    public boolean setReservation(long runtime, long deadline, long period) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean admitted = ThreadedKernel.scheduler.setReservation(this, runtime,
+								  deadline,
+								  period);
+
+	Machine.interrupt().restore(intStatus);
+	return admitted;
+    }
+
     /**
      * Waits for this thread to finish. If this thread is already finished,
      * return immediately. This method may be called any times. This thread 
@@ -285,11 +353,20 @@ public class KThread {
 	if (status != statusFinished) {
 	    if (joinedBy == null) createJoinQueue();
 	    joinedBy.waitForAccess(currentThread);
-	    sleep();
+	    sleep(blockedOnJoin);
 	}
 	Machine.interrupt().setStatus(intStatus);
     }
 
+    /**
+     * Return the scheduling statistics of this thread.
+     *
+     * @return	the statistics of this thread.
+     */
+    public ThreadStats getStats() {
+	return stats;
+    }
+
     /**
      * Tests whether the thead is finished
      */
@@ -313,12 +390,24 @@ public class KThread {
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     * So when <tt>runNextThread()</tt> returns to the idle thread, no other
+     * thread is ready, and it lets the interrupt controller skip ahead to the
+     * next interrupt instead of spinning until then.
      */
     private static void createIdleThread() {
 	Lib.assert(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    Machine.interrupt().disable();
+		    currentThread.ready();
+		    runNextThread();
+
+		    // nothing else is ready, and interrupts are still disabled
+		    Machine.interrupt().idle();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -335,6 +424,13 @@ public class KThread {
 	KThread nextThread = readyQueue.nextThread();
 	if (nextThread == null)
 	    nextThread = idleThread;
+	else
+	    numReady--;
+
+	if (ThreadedKernel.alarm != null)
+	    ThreadedKernel.alarm.startTimeSlice(nextThread,
+						nextThread != idleThread &&
+						numReady > 0);
 
 	nextThread.run();
     }
@@ -364,6 +460,11 @@ public class KThread {
 
 	Machine.yield();
 
+	if (currentThread != idleThread)
+	    currentThread.stats.stop(Machine.timer().getTime(),
+				     this != currentThread, preempting);
+	preempting = false;
+
 	currentThread.saveState();
 
 	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
@@ -390,6 +491,8 @@ public class KThread {
 	Machine.autoGrader().runningThread(this);
 	
 	status = statusRunning;
+	if (this != idleThread)
+	    stats.run(Machine.timer().getTime());
 
 	if (toBeDestroyed != null) {
 	    toBeDestroyed.tcb.destroy();
@@ -493,6 +596,32 @@ public class KThread {
      */
     public Object schedulingState = null;
 
+    /**
+     * Additional state used by schedulers that reserve processor time.
+     *
+     * @see	nachos.threads.DeadlineScheduler.Reservation
+     */
+    public Object reservationState = null;
+
+    /** The cause of blocking in <tt>sleep()</tt>. */
+    public static final int blockedOnOther = 0;
+    /** The cause of blocking in <tt>Lock.acquire()</tt>. */
+    public static final int blockedOnLock = 1;
+    /** The cause of blocking in <tt>Semaphore.P()</tt>. */
+    public static final int blockedOnSemaphore = 2;
+    /** The cause of blocking in <tt>Condition2.sleep()</tt>. */
+    public static final int blockedOnCondition = 3;
+    /** The cause of blocking in <tt>Alarm.waitUntil()</tt>. */
+    public static final int blockedOnAlarm = 4;
+    /** The cause of blocking in <tt>join()</tt>. */
+    public static final int blockedOnJoin = 5;
+    /** The number of causes of blocking. */
+    public static final int numBlockCauses = 6;
+    /** The names of the causes of blocking. */
+    public static final String[] blockCauseNames = {
+	"other", "lock", "semaphore", "condition", "alarm", "join"
+    };
+
     private static final int statusNew = 0;
     private static final int statusReady = 1;
     private static final int statusRunning = 2;
@@ -508,6 +637,7 @@ public class KThread {
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
+    private ThreadStats stats = new ThreadStats();
 
     /**
      * The threads which are joining this thread.
@@ -523,7 +653,11 @@ public class KThread {
     private static int numCreated = 0;
 
     private static ThreadQueue readyQueue = null;
+    /** The number of threads in <tt>readyQueue</tt>. */
+    private static int numReady = 0;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+    /** <tt>true</tt> if the current thread is being preempted. */
+    private static boolean preempting = false;
 }
@@ -38,7 +38,7 @@ public class Lock {
 
 	if (lockHolder != null) {
 	    waitQueue.waitForAccess(thread);
-	    KThread.sleep();
+	    KThread.sleep(KThread.blockedOnLock);
 	}
 	else {
 	    waitQueue.acquire(thread);
@@ -57,7 +57,12 @@ public class LotteryScheduler extends PriorityScheduler {
     }
     
     /*
-     * here we reuse PriorityQueue.groups by using groups[0] only
+     * here we reuse PriorityQueue.groups by using groups[0] only, and
+     * PriorityQueue.maxGroup as the total number of tickets waiting.
+     * to draw the winner, waiting threads are also given slots in a
+     * binary indexed (Fenwick) tree of their tickets, so that the holder
+     * of a ticket is found, and tickets are added or removed, in
+     * O(log n) steps.
      */
     protected class LotteryQueue extends PriorityQueue {
 	LotteryQueue(boolean transferPriority) {
@@ -69,40 +74,100 @@ public class LotteryScheduler extends PriorityScheduler {
 
 	    if (groups[0] == null) return null;
 	    
-	    int winner = Lib.random(getTotalTickets());
-	    
-    	    LotteryThreadState candidate = (LotteryThreadState)groups[0];
-    	    do {
-		winner -= candidate.totalTickets;
-		if (winner < 0) {
-		    candidate.unlink();
-		    acquire(candidate.thread);
-		    return candidate.thread;
-		}
-		candidate = (LotteryThreadState)candidate.next;
-    	    } while (candidate != groups[0]);
+	    LotteryThreadState winner =
+		findTicket(Lib.random(getTotalTickets()));
 
-	    Lib.assertNotReached();
-	    return null;
+	    winner.unlink();
+	    acquire(winner.thread);
+	    return winner.thread;
 	}
 	
-	protected void adjustTickets(int num) {
+	/**
+	 * Give a thread that starts waiting on this queue a slot in the tree,
+	 * and add its tickets.
+	 */
+	protected void addWaiter(LotteryThreadState state) {
+	    if (numFreeSlots == 0)
+		grow();
+
+	    state.slot = freeSlots[--numFreeSlots];
+	    waiters[state.slot] = state;
+
+	    adjustTickets(state, state.totalTickets);
+	}
+
+	/**
+	 * Remove the tickets of a thread that stops waiting on this queue, and
+	 * free its slot.
+	 */
+	protected void removeWaiter(LotteryThreadState state) {
+	    adjustTickets(state, -state.totalTickets);
+
+	    waiters[state.slot] = null;
+	    freeSlots[numFreeSlots++] = state.slot;
+	    state.slot = -1;
+	}
+
+	/**
+	 * Add <tt>num</tt> tickets to a thread waiting on this queue, and
+	 * transfer them on to the holder.
+	 */
+	protected void adjustTickets(LotteryThreadState state, int num) {
 	    if (num == 0) return;
-	    LotteryQueue queue = this;
-	    do {
-		queue.maxGroup += num;
-		if (queue.holder != null) {
-		    ((LotteryThreadState)queue.holder).totalTickets += num;
-		    queue = (LotteryQueue)queue.holder.queue;
-		} else {
-		    queue = null;
-		}
-	    } while (queue != null);
+
+	    for (int i=state.slot+1; i<=waiters.length; i+=(i & -i))
+		tree[i] += num;
+
+	    maxGroup += num;
+	    if (holder != null)
+		((LotteryThreadState)holder).adjustTickets(num);
 	}
 	
 	protected int getTotalTickets() {
     	    return maxGroup;
 	}
+
+	/**
+	 * Return the waiting thread holding the specified ticket, where the
+	 * tickets are numbered from 0 in slot order.
+	 */
+	private LotteryThreadState findTicket(int ticket) {
+	    int slot = 0;
+	    for (int step=waiters.length; step>0; step/=2) {
+		if (tree[slot+step] <= ticket) {
+		    slot += step;
+		    ticket -= tree[slot];
+		}
+	    }
+
+	    return waiters[slot];
+	}
+
+	private void grow() {
+	    LotteryThreadState[] oldWaiters = waiters;
+
+	    waiters = new LotteryThreadState[Math.max(oldWaiters.length*2, 1)];
+	    tree = new int[waiters.length+1];
+	    freeSlots = new int[waiters.length];
+
+	    // hand out the lowest slots first
+	    for (int i=waiters.length-1; i>=oldWaiters.length; i--)
+		freeSlots[numFreeSlots++] = i;
+
+	    for (int i=0; i<oldWaiters.length; i++) {
+		waiters[i] = oldWaiters[i];
+		for (int j=i+1; j<=waiters.length; j+=(j & -j))
+		    tree[j] += waiters[i].totalTickets;
+	    }
+	}
+
+	/** The waiting thread in each slot, a power of two of them. */
+	private LotteryThreadState[] waiters = new LotteryThreadState[0];
+	/** <tt>tree[i]</tt> sums the tickets in slots <tt>i - (i & -i)</tt>
+	 *  through <tt>i - 1</tt>. */
+	private int[] tree = new int[1];
+	private int[] freeSlots = new int[0];
+	private int numFreeSlots = 0;
 	
 	public void print() {
 	    if (groups[0] == null) return;
@@ -139,33 +204,38 @@ public class LotteryScheduler extends PriorityScheduler {
 	    
 	    int delta = priority - this.priority;
 	    this.priority = priority;
-	    totalTickets += delta;
-	    if (queue != null) ((LotteryQueue)queue).adjustTickets(delta);
+	    adjustTickets(delta);
+	}
+	
+	/**
+	 * Add <tt>num</tt> tickets to the total held by this thread, and to
+	 * the queue it is waiting on, if any.
+	 */
+	protected void adjustTickets(int num) {
+	    totalTickets += num;
+	    if (queue != null)
+		((LotteryQueue)queue).adjustTickets(this, num);
 	}
 	
 	protected void adjustQueueOnLink(PriorityQueue q) {
-	    ((LotteryQueue)q).adjustTickets(totalTickets);
+	    ((LotteryQueue)q).addWaiter(this);
 	}
 	
 	protected void adjustQueueOnUnlink(PriorityQueue q) {
-	    ((LotteryQueue)q).adjustTickets(-totalTickets);
+	    ((LotteryQueue)q).removeWaiter(this);
 	}
 	
 	protected void releaseResource(PriorityQueue waitQueue) {
 	    Lib.assert(waitQueue.transferPriority);
-	    holdingQueues.remove(waitQueue);
-	    int delta = -((LotteryQueue)waitQueue).getTotalTickets();
-	    totalTickets += delta;
-	    if (queue != null) ((LotteryQueue)queue).adjustTickets(delta);
+	    removeHoldingQueue(waitQueue);
+	    adjustTickets(-((LotteryQueue)waitQueue).getTotalTickets());
 	}
 	
 	protected void takeResource(PriorityQueue waitQueue) {
 	    Lib.assert(waitQueue.transferPriority);
 	    waitQueue.holder = this;
-	    holdingQueues.addLast(waitQueue);
-	    int delta = ((LotteryQueue)waitQueue).getTotalTickets();
-	    totalTickets += delta;
-	    if (queue != null) ((LotteryQueue)queue).adjustTickets(delta);
+	    addHoldingQueue(waitQueue);
+	    adjustTickets(((LotteryQueue)waitQueue).getTotalTickets());
 	}
 	
 	public String toString() {
@@ -173,5 +243,7 @@ public class LotteryScheduler extends PriorityScheduler {
 	}
 	
 	protected int totalTickets;
+	/** The slot of this thread in the tree of the queue it waits on. */
+	protected int slot = -1;
     }
 }
@@ -0,0 +1,402 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+import java.util.StringTokenizer;
+
+/**
+ * A multi-level feedback queue scheduler, which favors threads that only run
+ * for a short time before they block, such as threads waiting for the
+ * console, files or the network, over threads that use all the processor time
+ * they are given.
+ *
+ * <p>
+ * Every thread is at one of several levels, and starts at the top level. The
+ * next thread to be dequeued is always the thread that has been waiting
+ * longest at the highest level with any threads waiting, and a thread that
+ * becomes ready at a higher level than the current thread preempts it. Each
+ * level has a time allotment, which is also the time slice of a thread at
+ * that level. Once a thread has run for its whole allotment at a level,
+ * however many times it blocked or yielded in between, it is moved down a
+ * level. So that threads at the bottom are not starved, every thread is
+ * moved back to the top level periodically.
+ *
+ * <p>
+ * The allotments are listed from the top level down in
+ * <tt>MLFQScheduler.quanta</tt> in <tt>nachos.conf</tt>, separated by commas,
+ * and threads are boosted every <tt>MLFQScheduler.boostInterval</tt> ticks.
+ * Run time is measured in ticks of <tt>Machine.timer()</tt>. The time slices
+ * are enforced most accurately with a tickless timer.
+ *
+ * <p>
+ * Like a round-robin scheduler, this scheduler does not transfer priority.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new multi-level feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+	String list = Config.getString("MLFQScheduler.quanta");
+	if (list == null)
+	    list = "500,1000,2000";
+
+	StringTokenizer tokens = new StringTokenizer(list, ",");
+	quanta = new long[tokens.countTokens()];
+	for (int i=0; i<quanta.length; i++) {
+	    quanta[i] = Long.parseLong(tokens.nextToken().trim());
+	    Lib.assert(quanta[i] > 0);
+	}
+	Lib.assert(quanta.length > 0);
+
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 20000);
+	Lib.assert(boostInterval > 0);
+    }
+
+    /**
+     * Allocate a new multi-level feedback thread queue.
+     *
+     * @param	transferPriority	ignored. This scheduler does not
+     *					transfer priority.
+     * @return	a new multi-level feedback thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MLFQQueue();
+    }
+
+    /**
+     * Return the level of the specified thread, where <tt>0</tt> is the top
+     * level.
+     *
+     * @param	thread	the thread to get the level of.
+     * @return	the thread's level.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assert(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getLevel();
+    }
+
+    /**
+     * Return the rest of the allotment of the specified thread at its
+     * current level.
+     */
+    public long getTimeSlice(KThread thread) {
+	Lib.assert(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	return quanta[state.getLevel()] - state.used;
+    }
+
+    /**
+     * Return <tt>true</tt> if the specified thread is at a higher level than
+     * the current thread.
+     */
+    public boolean shouldPreempt(KThread thread) {
+	Lib.assert(Machine.interrupt().disabled());
+
+	return (getThreadState(thread).getLevel() <
+		getThreadState(KThread.currentThread()).getLevel());
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Return the number of the current boost period. Every thread is moved to
+     * the top level at the start of a new period.
+     */
+    protected long getBoostPeriod() {
+	return Machine.timer().getTime() / boostInterval;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with one FIFO queue for each level.
+     */
+    protected class MLFQQueue extends ThreadQueue {
+	MLFQQueue() {
+	    levels = new LinkedList[quanta.length];
+	    for (int i=0; i<levels.length; i++)
+		levels[i] = new LinkedList();
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assert(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+
+	    // a thread that yields is charged before it is queued
+	    if (thread == KThread.currentThread())
+		state.charge();
+
+	    boost();
+
+	    state.waiting = true;
+	    levels[state.getLevel()].add(thread);
+	}
+
+	public KThread nextThread() {
+	    Lib.assert(Machine.interrupt().disabled());
+
+	    ThreadState current = getThreadState(KThread.currentThread());
+	    if (!current.waiting)
+		current.charge();
+
+	    boost();
+
+	    for (int i=0; i<levels.length; i++) {
+		if (!levels[i].isEmpty()) {
+		    KThread thread = (KThread) levels[i].removeFirst();
+		    ThreadState state = getThreadState(thread);
+		    state.waiting = false;
+		    state.dispatch();
+		    return thread;
+		}
+	    }
+
+	    return null;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assert(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * If a new boost period has started, move every waiting thread to the
+	 * top level, keeping them in the order they would have been dequeued
+	 * in.
+	 */
+	private void boost() {
+	    long period = getBoostPeriod();
+	    if (period == boostPeriod)
+		return;
+
+	    boostPeriod = period;
+	    for (int i=1; i<levels.length; i++) {
+		levels[0].addAll(levels[i]);
+		levels[i].clear();
+	    }
+	}
+
+	public void print() {
+	    Lib.assert(Machine.interrupt().disabled());
+
+	    for (int i=0; i<levels.length; i++) {
+		if (levels[i].isEmpty()) continue;
+
+		System.out.print("level " + i + ": ");
+		for (int j=0; j<levels[i].size(); j++)
+		    System.out.print("\t" + levels[i].get(j));
+		System.out.println();
+	    }
+	}
+
+	private LinkedList[] levels;
+	private long boostPeriod = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, and how much of its
+     * allotment at that level it has used.
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread, at the top level.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+
+	    boostPeriod = getBoostPeriod();
+	    dispatch();
+	}
+
+	/**
+	 * Return the level of the associated thread, moving it to the top
+	 * level first if it has not been there since the last boost.
+	 *
+	 * @return	the level of the associated thread.
+	 */
+	public int getLevel() {
+	    long period = getBoostPeriod();
+	    if (boostPeriod != period) {
+		boostPeriod = period;
+		level = 0;
+		used = 0;
+	    }
+
+	    return level;
+	}
+
+	/**
+	 * Note that the associated thread is about to start running.
+	 */
+	protected void dispatch() {
+	    dispatchTime = Machine.timer().getTime();
+	}
+
+	/**
+	 * Charge the associated thread for the time it has run since it was
+	 * dispatched or last charged, and move it down a level if it has used
+	 * up its allotment. A thread at the bottom level gets a new allotment
+	 * there instead.
+	 */
+	protected void charge() {
+	    long time = Machine.timer().getTime();
+
+	    used += time - dispatchTime;
+	    dispatchTime = time;
+
+	    if (used >= quanta[getLevel()]) {
+		if (level < quanta.length-1)
+		    level++;
+		used = 0;
+	    }
+	}
+
+	public String toString() {
+	    return ("level: " + level + " used: " + used);
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The level of the associated thread. */
+	protected int level = 0;
+	/** The ticks the associated thread has run for at its level. */
+	protected long used = 0;
+	/** <tt>true</tt> if the associated thread is waiting on a queue. */
+	protected boolean waiting = false;
+
+	private long dispatchTime;
+	private long boostPeriod;
+    }
+
+    private static class PingTest implements Runnable {
+	/**
+	 * @param	sleepTime	how long to sleep at a time, or <tt>0</tt> to
+	 *				spin without ever blocking.
+	 */
+	PingTest(long sleepTime) {
+	    this.sleepTime = sleepTime;
+	}
+
+	public void run() {
+	    while (!stopped) {
+		long time = Machine.timer().getTime();
+		if (time < parkUntil) {
+		    ThreadedKernel.alarm.waitUntil(parkUntil - time);
+		    continue;
+		}
+
+		if (sleepTime == 0) {
+		    Machine.interrupt().disable();
+		    Machine.interrupt().enable();
+		    continue;
+		}
+
+		long wakeTime = Machine.timer().getTime() + sleepTime;
+		ThreadedKernel.alarm.waitUntil(sleepTime);
+
+		long latency = Machine.timer().getTime() - wakeTime;
+		if (measuring)
+		    maxLatency = Math.max(maxLatency, latency);
+	    }
+	}
+
+	private long sleepTime;
+	private long maxLatency = 0;
+
+	static boolean stopped, measuring;
+	/** A time until which the threads sleep, instead of running. */
+	static long parkUntil;
+    }
+
+    /**
+     * Return the level of the specified thread.
+     */
+    private int level(KThread thread) {
+	boolean intStatus = Machine.interrupt().disable();
+	int level = getPriority(thread);
+	Machine.interrupt().restore(intStatus);
+
+	return level;
+    }
+
+    /**
+     * Test that a thread that never blocks sinks to the bottom level within
+     * a boost period, that a thread that wakes up from sleeping preempts it
+     * there, and that both are back at the top level after the next boost.
+     * Does nothing unless the kernel uses a multi-level feedback queue
+     * scheduler.
+     */
+    public static void selfTest() {
+	if (ThreadedKernel.scheduler.getClass() != MLFQScheduler.class)
+	    return;
+
+	System.out.println("MLFQScheduler.selfTest()");
+
+	MLFQScheduler scheduler = (MLFQScheduler) ThreadedKernel.scheduler;
+	int bottom = scheduler.quanta.length-1;
+
+	PingTest.stopped = false;
+	PingTest.measuring = false;
+	PingTest.parkUntil = 0;
+	PingTest spin = new PingTest(0);
+	PingTest sleep = new PingTest(500);
+	KThread spinner = new KThread(spin).setName("spinner");
+	KThread sleeper = new KThread(sleep).setName("sleeper");
+
+	// start with a whole boost period for the spinner to sink in
+	long interval = scheduler.boostInterval;
+	ThreadedKernel.alarm.waitUntil(interval -
+				       Machine.timer().getTime() % interval);
+	long period = scheduler.getBoostPeriod();
+
+	spinner.fork();
+	sleeper.fork();
+
+	while (scheduler.level(spinner) != bottom)
+	    ThreadedKernel.alarm.waitUntil(100);
+	System.out.println("*** spinner reached level " + bottom + " at "
+			   + Machine.timer().getTime());
+
+	// without preemption, the sleeper would wait out the spinner's slice
+	PingTest.measuring = true;
+	ThreadedKernel.alarm.waitUntil(2000);
+	PingTest.measuring = false;
+	System.out.println("*** sleeper woke up at most " + sleep.maxLatency
+			   + " ticks late");
+	Lib.assert(sleep.maxLatency < 2*Stats.TimerTicks);
+	Lib.assert(scheduler.level(spinner) == bottom);
+	Lib.assert(scheduler.getBoostPeriod() == period);
+
+	// look at the levels before the spinner uses up another allotment
+	long boostTime = (period+1) * interval;
+	PingTest.parkUntil = boostTime + 2*Stats.TimerTicks;
+	ThreadedKernel.alarm.waitUntil(boostTime - Machine.timer().getTime());
+	Lib.assert(scheduler.getBoostPeriod() == period+1);
+	Lib.assert(scheduler.level(spinner) == 0);
+	Lib.assert(scheduler.level(sleeper) == 0);
+
+	PingTest.stopped = true;
+	spinner.join();
+	sleeper.join();
+
+	System.out.println();
+    }
+
+    private long[] quanta;
+    private long boostInterval;
+}
@@ -131,6 +131,65 @@ public abstract class Scheduler {
 	setPriority(KThread.currentThread(), priority);
     }
 
+    /**
+     * Return how many ticks the specified thread, which is about to run, may
+     * run before it is preempted, if other threads are ready to run. Must be
+     * called with interrupts disabled.
+     *
+     * <p>
+     * By default, the alarm decides, which is indicated by returning
+     * <tt>0</tt>.
+     *
+     * @param	thread	the thread about to run.
+     * @return	the length of the thread's time slice, or <tt>0</tt>.
+     *
+     * @see	nachos.threads.Alarm
+     */
+    public long getTimeSlice(KThread thread) {
+	Lib.assert(Machine.interrupt().disabled());
+	return 0;
+    }
+
+    /**
+     * Return <tt>true</tt> if the specified thread, which has just become
+     * ready to run, should preempt the current thread without waiting for the
+     * end of its time slice. Must be called with interrupts disabled.
+     *
+     * <p>
+     * By default, threads never preempt each other.
+     *
+     * @param	thread	the thread that has become ready.
+     * @return	<tt>true</tt> if the current thread should yield to it.
+     */
+    public boolean shouldPreempt(KThread thread) {
+	Lib.assert(Machine.interrupt().disabled());
+	return false;
+    }
+
+    /**
+     * Reserve <i>runtime</i> ticks of processor time for the specified thread
+     * within <i>deadline</i> ticks of each time it wakes up, at most once
+     * every <i>period</i> ticks. Must be called with interrupts disabled.
+     *
+     * <p>
+     * By default, reservations are not supported, and only cancelling one,
+     * by passing a <i>runtime</i> of <tt>0</tt>, succeeds.
+     *
+     * @param	thread	the thread to reserve processor time for.
+     * @param	runtime	the ticks to reserve, or <tt>0</tt> to cancel the
+     *			thread's reservation.
+     * @param	deadline	the ticks within which to run.
+     * @param	period	the shortest time between two wake ups.
+     * @return	<tt>true</tt> if the reservation was admitted.
+     *
+     * @see	nachos.threads.DeadlineScheduler
+     */
+    public boolean setReservation(KThread thread, long runtime, long deadline,
+				  long period) {
+	Lib.assert(Machine.interrupt().disabled());
+	return (runtime == 0);
+    }
+
     /**
      * If possible, raise the priority of the current thread in some
      * scheduler-dependent way.
@@ -39,7 +39,7 @@ public class Semaphore {
 
 	if (value == 0) {
 	    waitQueue.waitForAccess(KThread.currentThread());
-	    KThread.sleep();
+	    KThread.sleep(KThread.blockedOnSemaphore);
 	}
 	else {
 	    value--;
@@ -0,0 +1,428 @@
+package nachos.threads;
+
+import nachos.machine.*;
+import nachos.threads.PriorityScheduler.PriorityQueue;
+import nachos.threads.PriorityScheduler.ThreadState;
+
+/**
+ * A scheduler that shares the processor among threads in proportion to their
+ * tickets, deterministically.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread, and tickets are transferred through locks and through
+ * joins. Instead of holding a lottery, each thread keeps a <i>pass</i>, which
+ * advances by the time the thread runs divided by its tickets. The next
+ * thread to be dequeued is always the waiting thread with the smallest pass,
+ * or, among threads with the same pass, the one that has been waiting
+ * longest. Over any interval, each thread gets processor time in proportion
+ * to its tickets, give or take one thread switch.
+ *
+ * <p>
+ * Run time is measured in ticks of <tt>Machine.timer()</tt>, and charged to
+ * the current thread whenever it dequeues a thread, which includes every
+ * time it stops running. A thread that starts waiting on a queue with a pass
+ * behind the queue's is moved up to the queue's pass, so that a thread cannot
+ * save up time by sleeping.
+ */
+public class StrideScheduler extends PriorityScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new StrideThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Return the number of tickets a thread with the specified priority holds
+     * of its own.
+     *
+     * @param	priority	the priority of the thread.
+     * @return	the number of tickets, which is <tt>priority+1</tt>.
+     */
+    protected int getTickets(int priority) {
+	return priority + 1;
+    }
+
+    /**
+     * The pass a thread with one ticket advances by in one tick.
+     */
+    public static final long stride1 = 1 << 20;
+
+    /*
+     * as in LotteryQueue, we reuse PriorityQueue.groups by using groups[0]
+     * only, and PriorityQueue.maxGroup as the total number of tickets
+     * waiting. the waiting threads are also kept in a binary min-heap
+     * ordered by pass, in which each thread knows its own index.
+     */
+    protected class StrideQueue extends PriorityQueue {
+	StrideQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	public KThread nextThread() {
+	    Lib.assert(Machine.interrupt().disabled());
+
+	    ((StrideThreadState) getThreadState(KThread.currentThread())).charge();
+
+	    if (heapSize == 0) return null;
+
+	    StrideThreadState winner = heap[0];
+	    pass = winner.pass;
+
+	    winner.unlink();
+	    acquire(winner.thread);
+	    winner.dispatch();
+	    return winner.thread;
+	}
+
+	/**
+	 * Add a thread that starts waiting on this queue to the heap, and
+	 * add its tickets.
+	 */
+	protected void addWaiter(StrideThreadState state) {
+	    if (state.pass < pass)
+		state.pass = pass;
+	    state.arrival = numArrivals++;
+
+	    if (heapSize == heap.length) {
+		StrideThreadState[] oldHeap = heap;
+		heap = new StrideThreadState[Math.max(heapSize*2, 1)];
+		System.arraycopy(oldHeap, 0, heap, 0, heapSize);
+	    }
+
+	    heap[heapSize] = state;
+	    state.heapIndex = heapSize++;
+	    siftUp(state.heapIndex);
+
+	    adjustTickets(state.totalTickets);
+	}
+
+	/**
+	 * Remove a thread that stops waiting on this queue from the heap,
+	 * and remove its tickets.
+	 */
+	protected void removeWaiter(StrideThreadState state) {
+	    adjustTickets(-state.totalTickets);
+
+	    int i = state.heapIndex;
+	    state.heapIndex = -1;
+
+	    if (i != --heapSize) {
+		heap[i] = heap[heapSize];
+		heap[i].heapIndex = i;
+		passChanged(heap[i]);
+	    }
+	    heap[heapSize] = null;
+	}
+
+	/**
+	 * Move a waiting thread whose pass has changed to its new place in
+	 * the heap.
+	 */
+	protected void passChanged(StrideThreadState state) {
+	    siftUp(state.heapIndex);
+	    siftDown(state.heapIndex);
+	}
+
+	/**
+	 * Add <tt>num</tt> tickets to the total waiting on this queue, and
+	 * transfer them on to the holder.
+	 */
+	protected void adjustTickets(int num) {
+	    if (num == 0) return;
+
+	    maxGroup += num;
+	    if (holder != null)
+		((StrideThreadState)holder).adjustTickets(num);
+	}
+
+	protected int getTotalTickets() {
+	    return maxGroup;
+	}
+
+	private void siftUp(int i) {
+	    StrideThreadState state = heap[i];
+	    while (i > 0 && state.before(heap[(i-1)/2])) {
+		heap[i] = heap[(i-1)/2];
+		heap[i].heapIndex = i;
+		i = (i-1)/2;
+	    }
+	    heap[i] = state;
+	    state.heapIndex = i;
+	}
+
+	private void siftDown(int i) {
+	    StrideThreadState state = heap[i];
+	    while (2*i+1 < heapSize) {
+		int child = 2*i+1;
+		if (child+1 < heapSize && heap[child+1].before(heap[child]))
+		    child++;
+		if (!heap[child].before(state))
+		    break;
+
+		heap[i] = heap[child];
+		heap[i].heapIndex = i;
+		i = child;
+	    }
+	    heap[i] = state;
+	    state.heapIndex = i;
+	}
+
+	public void print() {
+	    for (int i=0; i<heapSize; i++)
+		System.out.print("\t" + heap[i].thread.toString());
+	    System.out.println();
+	}
+
+	/** The pass of the thread most recently dequeued. */
+	protected long pass = 0;
+
+	private StrideThreadState[] heap = new StrideThreadState[0];
+	private int heapSize = 0;
+    }
+
+    /*
+     * note: as in LotteryThreadState, getTickets(priority) is the number of
+     *       tickets held by the thread itself, effectivePriority is set constantly
+     *       to 0, and totalTickets counts donated tickets too.
+     */
+    protected class StrideThreadState extends ThreadState {
+	public StrideThreadState(KThread thread) {
+	    super(thread);
+	    Lib.assert(priorityMinimum >= 0);
+	    effectivePriority = priorityMinimum;
+	    priority = priorityDefault;
+	    totalTickets = getTickets(priority);
+	    dispatch();
+	}
+
+	public void setPriority(int priority) {
+	    if (this.priority == priority)
+		return;
+
+	    int delta = getTickets(priority) - getTickets(this.priority);
+	    this.priority = priority;
+	    adjustTickets(delta);
+	}
+
+	/**
+	 * Add <tt>num</tt> tickets to the total held by this thread, and to
+	 * the queue it is waiting on, if any.
+	 */
+	protected void adjustTickets(int num) {
+	    totalTickets += num;
+	    if (queue != null)
+		((StrideQueue)queue).adjustTickets(num);
+	}
+
+	/**
+	 * Note that the associated thread is about to start running.
+	 */
+	protected void dispatch() {
+	    dispatchTime = Machine.timer().getTime();
+	}
+
+	/**
+	 * Advance the pass of the associated thread by the time it has run
+	 * since it was dispatched or last charged.
+	 */
+	protected void charge() {
+	    long time = Machine.timer().getTime();
+
+	    pass += (time - dispatchTime) * stride1 / totalTickets;
+	    dispatchTime = time;
+
+	    // a thread that yields is already waiting on the ready queue
+	    if (queue != null)
+		((StrideQueue)queue).passChanged(this);
+	}
+
+	/**
+	 * Return <tt>true</tt> if this thread should be dequeued before the
+	 * specified thread.
+	 */
+	protected boolean before(StrideThreadState state) {
+	    return (pass < state.pass ||
+		    (pass == state.pass && arrival < state.arrival));
+	}
+
+	protected void adjustQueueOnLink(PriorityQueue q) {
+	    ((StrideQueue)q).addWaiter(this);
+	}
+
+	protected void adjustQueueOnUnlink(PriorityQueue q) {
+	    ((StrideQueue)q).removeWaiter(this);
+	}
+
+	protected void releaseResource(PriorityQueue waitQueue) {
+	    Lib.assert(waitQueue.transferPriority);
+	    removeHoldingQueue(waitQueue);
+	    adjustTickets(-((StrideQueue)waitQueue).getTotalTickets());
+	}
+
+	protected void takeResource(PriorityQueue waitQueue) {
+	    Lib.assert(waitQueue.transferPriority);
+	    waitQueue.holder = this;
+	    addHoldingQueue(waitQueue);
+	    adjustTickets(((StrideQueue)waitQueue).getTotalTickets());
+	}
+
+	public String toString() {
+	    return ("t: " + getTickets(priority) + " tt: " + totalTickets +
+		    " pass: " + pass);
+	}
+
+	protected int totalTickets;
+	protected long pass = 0;
+	protected long dispatchTime;
+
+	/** The order in which this thread joined the queue it waits on. */
+	protected long arrival;
+	/** The index of this thread in the heap of the queue it waits on. */
+	protected int heapIndex = -1;
+    }
+
+    private long numArrivals = 0;
+
+    private static class PingTest implements Runnable {
+	PingTest() {
+	}
+
+	public void run() {
+	    while (!stopped) {
+		// run for a while, then let the other threads run
+		for (int i=0; i<10; i++) {
+		    Machine.interrupt().disable();
+		    Machine.interrupt().enable();
+		}
+		loops++;
+
+		KThread.yield();
+	    }
+	}
+
+	private int loops = 0;
+
+	static boolean stopped;
+    }
+
+    private static class LockTest implements Runnable {
+	LockTest(Lock lock) {
+	    this.lock = lock;
+	}
+
+	public void run() {
+	    // nothing can run between setting waiting and blocking on the lock
+	    Machine.interrupt().disable();
+	    waiting = true;
+	    lock.acquire();
+	    lock.release();
+	    Machine.interrupt().enable();
+	}
+
+	private Lock lock;
+	private boolean waiting = false;
+    }
+
+    /**
+     * Test that three threads with 3, 2 and 4 tickets that keep yielding
+     * share the processor in proportion to their tickets, and that a thread
+     * holding a lock holds the tickets of a thread waiting for it as well.
+     * Does nothing unless the kernel uses a stride scheduler.
+     */
+    public static void selfTest() {
+	if (ThreadedKernel.scheduler.getClass() != StrideScheduler.class)
+	    return;
+
+	System.out.println("StrideScheduler.selfTest()");
+
+	StrideScheduler scheduler = (StrideScheduler) ThreadedKernel.scheduler;
+	int[] tickets = { 3, 2, 4 };
+	int totalTickets = 0;
+	PingTest[] tests = new PingTest[tickets.length];
+	KThread[] threads = new KThread[tickets.length];
+
+	PingTest.stopped = false;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<threads.length; i++) {
+	    tests[i] = new PingTest();
+	    threads[i] = new KThread(tests[i]).setName("ping " + tickets[i]);
+	    scheduler.setPriority(threads[i], tickets[i] - 1);
+	    Lib.assert(scheduler.getTickets(tickets[i] - 1) == tickets[i]);
+	    totalTickets += tickets[i];
+
+	    threads[i].fork();
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	ThreadedKernel.alarm.waitUntil(30000);
+	PingTest.stopped = true;
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	int totalLoops = 0;
+	for (int i=0; i<threads.length; i++)
+	    totalLoops += tests[i].loops;
+
+	// each thread's share is within a tenth of its share of tickets
+	for (int i=0; i<threads.length; i++) {
+	    System.out.println("*** " + threads[i] + " looped "
+			       + tests[i].loops + " of " + totalLoops
+			       + " times");
+
+	    int expected = totalLoops * tickets[i];
+	    Lib.assert(Math.abs(tests[i].loops * totalTickets - expected) <=
+		       expected / 10);
+	}
+
+	Lock lock = new Lock();
+	LockTest lockTest = new LockTest(lock);
+	KThread waiter = new KThread(lockTest).setName("lock waiter");
+
+	intStatus = Machine.interrupt().disable();
+
+	KThread current = KThread.currentThread();
+	StrideThreadState holder =
+	    (StrideThreadState) scheduler.getThreadState(current);
+	int ownTickets = holder.totalTickets;
+	scheduler.setPriority(waiter, priorityMaximum);
+
+	lock.acquire();
+	waiter.fork();
+	while (!lockTest.waiting)
+	    KThread.yield();
+
+	Lib.assert(holder.totalTickets ==
+		   ownTickets + scheduler.getTickets(priorityMaximum));
+	lock.release();
+	Lib.assert(holder.totalTickets == ownTickets);
+
+	Machine.interrupt().restore(intStatus);
+
+	waiter.join();
+
+	System.out.println();
+    }
+}
@@ -0,0 +1,271 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * The scheduling statistics of a thread: how long it has waited on the ready
+ * queue, run, and been blocked for each cause, and how many times it has given
+ * up the processor voluntarily, by yielding or blocking, or involuntarily, at
+ * the end of a time slice. Time is measured in ticks of
+ * <tt>Machine.timer()</tt>.
+ *
+ * <p>
+ * Each thread has one of these objects, which <tt>KThread</tt> updates as the
+ * thread changes state. Histograms of the ready queue waits, run bursts and
+ * blocked times of all threads, in power-of-two buckets, are kept as well,
+ * and printed by <tt>print()</tt>.
+ *
+ * @see	nachos.threads.KThread#getStats
+ */
+public final class ThreadStats {
+    /**
+     * Allocate a new statistics object for a new thread.
+     */
+    ThreadStats() {
+	numThreads++;
+    }
+
+    /**
+     * Return one of the statistics of the thread. A statistic of the current
+     * thread includes the time since it last started running or blocked.
+     *
+     * @param	index	the index of the statistic, between <tt>0</tt> and
+     *			<tt>numStats-1</tt>.
+     * @return	the value of the statistic.
+     */
+    public long read(int index) {
+	Lib.assert(index >= 0 && index < numStats);
+
+	long time = Machine.timer().getTime();
+
+	switch (index) {
+	case statReadyTicks:
+	    return readyTicks + (readySince >= 0 ? time - readySince : 0);
+	case statRunTicks:
+	    return runTicks + (runningSince >= 0 ? time - runningSince : 0);
+	case statVoluntarySwitches:
+	    return numVoluntarySwitches;
+	case statInvoluntarySwitches:
+	    return numInvoluntarySwitches;
+	}
+
+	if (index < statReadyHistogram) {
+	    int cause = index - statBlockedTicks;
+	    return blockedTicks[cause] +
+		(blockCause == cause ? time - blockedSince : 0);
+	}
+
+	return readyHistogram[index - statReadyHistogram];
+    }
+
+    /**
+     * Note that the thread has become ready at the specified time, after
+     * blocking if it was blocked.
+     */
+    void ready(long time) {
+	if (blockCause >= 0) {
+	    long blocked = time - blockedSince;
+	    blockedTicks[blockCause] += blocked;
+	    allBlocked[blockCause].add(blocked);
+	    blockCause = -1;
+	}
+
+	readySince = time;
+    }
+
+    /**
+     * Note that the thread has started running at the specified time.
+     */
+    void run(long time) {
+	if (readySince >= 0) {
+	    long waited = time - readySince;
+	    readyTicks += waited;
+	    readyHistogram[Histogram.bucket(waited)]++;
+	    allReady.add(waited);
+	    readySince = -1;
+	}
+
+	runningSince = time;
+    }
+
+    /**
+     * Note that the thread has stopped running at the specified time, and
+     * whether another thread is running in its place.
+     *
+     * @param	time		the time.
+     * @param	switched	<tt>true</tt> if another thread is about to
+     *				run.
+     * @param	preempted	<tt>true</tt> if the thread is giving up the
+     *				processor at the end of its time slice.
+     */
+    void stop(long time, boolean switched, boolean preempted) {
+	if (runningSince >= 0) {
+	    long ran = time - runningSince;
+	    runTicks += ran;
+	    allRuns.add(ran);
+	    runningSince = -1;
+	}
+
+	if (switched) {
+	    if (preempted) {
+		numInvoluntarySwitches++;
+		totalInvoluntarySwitches++;
+	    }
+	    else {
+		numVoluntarySwitches++;
+		totalVoluntarySwitches++;
+	    }
+	}
+    }
+
+    /**
+     * Note that the thread has blocked for the specified cause at the
+     * specified time.
+     */
+    void block(int cause, long time) {
+	Lib.assert(cause >= 0 && cause < KThread.numBlockCauses);
+
+	blockCause = cause;
+	blockedSince = time;
+    }
+
+    /**
+     * Print the totals and histograms of all threads.
+     */
+    public static void print() {
+	System.out.println("Threads: created " + numThreads
+			   + ", switches voluntary " + totalVoluntarySwitches
+			   + ", involuntary " + totalInvoluntarySwitches);
+
+	allReady.print("Ready queue wait");
+	allRuns.print("Run");
+	for (int i=0; i<KThread.numBlockCauses; i++)
+	    allBlocked[i].print("Blocked on " + KThread.blockCauseNames[i]);
+    }
+
+    /** Index of the ticks spent waiting on the ready queue. */
+    public static final int statReadyTicks = 0;
+    /** Index of the ticks spent running. */
+    public static final int statRunTicks = 1;
+    /** Index of the number of times the thread yielded or blocked. */
+    public static final int statVoluntarySwitches = 2;
+    /** Index of the number of times the thread was preempted. */
+    public static final int statInvoluntarySwitches = 3;
+    /**
+     * Index of the ticks spent blocked for the first cause. The ticks spent
+     * blocked for cause <i>c</i> are at <tt>statBlockedTicks+<i>c</i></tt>.
+     */
+    public static final int statBlockedTicks = 4;
+    /**
+     * Index of the first bucket of the histogram of ready queue waits. The
+     * number of waits in bucket <i>b</i> is at
+     * <tt>statReadyHistogram+<i>b</i></tt>.
+     *
+     * @see	nachos.threads.ThreadStats.Histogram#bucket
+     */
+    public static final int statReadyHistogram =
+	statBlockedTicks + KThread.numBlockCauses;
+    /** The number of statistics. */
+    public static final int numStats =
+	statReadyHistogram + Histogram.numBuckets;
+
+    private long readyTicks = 0;
+    private long runTicks = 0;
+    private long numVoluntarySwitches = 0;
+    private long numInvoluntarySwitches = 0;
+    private long[] blockedTicks = new long[KThread.numBlockCauses];
+    private long[] readyHistogram = new long[Histogram.numBuckets];
+
+    /** When the thread became ready, or -1 if it is not ready. */
+    private long readySince = -1;
+    /** When the thread started running, or -1 if it is not running. */
+    private long runningSince = -1;
+    /** Why the thread is blocked, or -1 if it is not blocked. */
+    private int blockCause = -1;
+    private long blockedSince;
+
+    private static int numThreads = 0;
+    private static long totalVoluntarySwitches = 0;
+    private static long totalInvoluntarySwitches = 0;
+
+    private static Histogram allReady = new Histogram();
+    private static Histogram allRuns = new Histogram();
+    private static Histogram[] allBlocked =
+	new Histogram[KThread.numBlockCauses];
+    static {
+	for (int i=0; i<allBlocked.length; i++)
+	    allBlocked[i] = new Histogram();
+    }
+
+    /**
+     * A histogram of durations, in power-of-two buckets.
+     */
+    static class Histogram {
+	/**
+	 * Add a duration to this histogram.
+	 *
+	 * @param	ticks	the duration.
+	 */
+	void add(long ticks) {
+	    counts[bucket(ticks)]++;
+	    count++;
+	    total += ticks;
+	    max = Math.max(max, ticks);
+	}
+
+	/**
+	 * Print this histogram, with the specified title, if it is not empty.
+	 */
+	void print(String title) {
+	    if (count == 0)
+		return;
+
+	    System.out.println(title + ": count " + count
+			       + ", total " + total
+			       + ", mean " + total/count
+			       + ", max " + max);
+
+	    for (int i=0; i<numBuckets; i++) {
+		if (counts[i] == 0)
+		    continue;
+
+		String range;
+		if (i == 0)
+		    range = "0";
+		else if (i == numBuckets-1)
+		    range = (1L << (i-1)) + "-";
+		else
+		    range = (1L << (i-1)) + "-" + ((1L << i) - 1);
+
+		System.out.println("  " + range + ": " + counts[i]);
+	    }
+	}
+
+	/**
+	 * Return the bucket of the specified duration. Bucket <tt>0</tt> holds
+	 * durations of <tt>0</tt>, bucket <i>b</i> holds durations from
+	 * 2<sup><i>b</i>-1</sup> to 2<sup><i>b</i></sup>-1, and the last
+	 * bucket holds all longer durations too.
+	 *
+	 * @param	ticks	the duration.
+	 * @return	its bucket.
+	 */
+	static int bucket(long ticks) {
+	    int bucket = 0;
+	    while (ticks > 0 && bucket < numBuckets-1) {
+		ticks >>>= 1;
+		bucket++;
+	    }
+
+	    return bucket;
+	}
+
+	/** The number of buckets. */
+	static final int numBuckets = 20;
+
+	private long[] counts = new long[numBuckets];
+	private long count = 0;
+	private long total = 0;
+	private long max = 0;
+    }
+}
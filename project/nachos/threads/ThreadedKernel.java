@@ -47,11 +47,16 @@ public class ThreadedKernel extends Kernel {
      */	
     public void selfTest() {
 	PriorityScheduler.selfTest();
+	StrideScheduler.selfTest();
+	MLFQScheduler.selfTest();
+	FairScheduler.selfTest();
+	DeadlineScheduler.selfTest();
 	KThread.selfTest();
 	Semaphore.selfTest();
 	Condition.selfTest();
 	Condition2.selfTest();
 	Alarm.selfTest();
+	Machine.timer().selfTest();
 	Communicator.selfTest();
 	SynchList.selfTest();
 	Boat.selfTest();
@@ -68,9 +73,16 @@ public class ThreadedKernel extends Kernel {
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel. Never returns. If
+     * <tt>ThreadedKernel.printThreadStats</tt> is set in
+     * <tt>nachos.conf</tt>, print the statistics of all threads first.
+     *
+     * @see	nachos.threads.ThreadStats#print
      */
     public void terminate() {
+	if (Config.getBoolean("ThreadedKernel.printThreadStats", false))
+	    ThreadStats.print();
+
 	Machine.halt();
     }
 
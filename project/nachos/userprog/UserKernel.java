@@ -99,9 +99,15 @@ public class UserKernel extends ThreadedKernel {
 	super.run();
 
 	UserProcess process = UserProcess.newUserProcess();
-	
-	String shellProgram = Machine.getShellProgramName();	
-	Lib.assert(process.execute(shellProgram, new String[] { }));
+
+	byte[] checkpoint = Machine.getCheckpointState();
+	if (checkpoint != null) {
+	    Lib.assert(process.restore(checkpoint));
+	}
+	else {
+	    String shellProgram = Machine.getShellProgramName();	
+	    Lib.assert(process.execute(shellProgram, new String[] { }));
+	}
 
 	KThread.currentThread().finish();
     }
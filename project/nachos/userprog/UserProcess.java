@@ -4,7 +4,12 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeMap;
@@ -67,6 +72,60 @@ public class UserProcess {
 	return true;
     }
 
+    /**
+     * Resume a process from the state saved by the <tt>checkpoint</tt>
+     * syscall, and fork a thread to run it. The process's address space and
+     * registers are restored; only the console is open.
+     *
+     * @param	state	the kernel state returned by
+     *			<tt>Machine.getCheckpointState()</tt>.
+     * @return	<tt>true</tt> if the process was successfully restored.
+     */
+    public boolean restore(byte[] state) {
+	DataInputStream in =
+	    new DataInputStream(new ByteArrayInputStream(state));
+
+	try {
+	    numPages = in.readInt();
+	    if (!restoreSections())
+		return false;
+
+	    boolean[] readOnly = new boolean[numPages];
+	    byte[] page = new byte[pageSize];
+	    for (int vpn=0; vpn<numPages; vpn++) {
+		int flags = in.readByte();
+		readOnly[vpn] = (flags & pageReadOnly) != 0;
+		if ((flags & pageZero) == 0) {
+		    in.readFully(page);
+		    Lib.assert(writeVirtualMemory(vpn*pageSize, page) ==
+			       pageSize);
+		}
+	    }
+
+	    // now that they're loaded, protect the read-only pages
+	    for (int vpn=0; vpn<numPages; vpn++) {
+		if (readOnly[vpn])
+		    setPageReadOnly(vpn);
+	    }
+
+	    restoredRegisters = new int[Processor.numUserRegisters];
+	    for (int i=0; i<restoredRegisters.length; i++)
+		restoredRegisters[i] = in.readInt();
+	}
+	catch (IOException e) {
+	    Lib.debug(dbgProcess, "\tcheckpoint is truncated");
+	    return false;
+	}
+
+	if (root == null)
+	    root = this;
+
+	thread = new UThread(this);
+	thread.setName("restored process").fork();
+
+	return true;
+    }
+
     /**
      * Save the state of this process in preparation for a context switch.
      * Called by <tt>UThread.saveState()</tt>.
@@ -158,7 +217,7 @@ public class UserProcess {
 				 int length) {
 	Lib.assert(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
+	Processor processor = Machine.processor();
 	
 	int vpn = vaddr / pageSize;
 	int pageOffset = vaddr % pageSize;
@@ -169,7 +228,7 @@ public class UserProcess {
             pageTable[vpn].used = true;
             int ppn = pageTable[vpn].ppn;
             int paddr = ppn * pageSize + pageOffset;
-            System.arraycopy(memory, paddr, data, offset, amount);
+            processor.readMemory(paddr, data, offset, amount);
 
 	    Lib.assert(pageTable[vpn].vpn == vpn);
 	    ++vpn; pageOffset = 0;
@@ -210,7 +269,7 @@ public class UserProcess {
 				  int length) {
 	Lib.assert(offset >= 0 && length >= 0 && offset+length <= data.length);
 	
-	byte[] memory = Machine.processor().getMemory();
+	Processor processor = Machine.processor();
 	
 	int vpn = vaddr / pageSize;
 	int pageOffset = vaddr % pageSize;
@@ -222,7 +281,7 @@ public class UserProcess {
             pageTable[vpn].dirty = true;
             int ppn = pageTable[vpn].ppn;
             int paddr = ppn * pageSize + pageOffset;
-            System.arraycopy(data, offset, memory, paddr, amount);
+            processor.writeMemory(paddr, data, offset, amount);
 	    
 	    Lib.assert(pageTable[vpn].vpn == vpn);
 	    ++vpn; pageOffset = 0;
@@ -361,6 +420,44 @@ public class UserProcess {
 	return true;
     }
 
+    /**
+     * Allocates memory for a process being restored from a checkpoint. Its
+     * contents are then written by <tt>restore()</tt>.
+     *
+     * @return	<tt>true</tt> if the memory was successfully allocated.
+     */
+    protected boolean restoreSections() {
+	pageTable = UserKernel.memoryManager.allocPages(numPages);
+	if (pageTable == null) {
+	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
+	    return false;
+	}
+
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn].valid = true;
+
+	return true;
+    }
+
+    /**
+     * Test whether a page of this process is read-only.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the page is read-only.
+     */
+    protected boolean isPageReadOnly(int vpn) {
+	return pageTable[vpn].readOnly;
+    }
+
+    /**
+     * Make a page of this process read-only.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    protected void setPageReadOnly(int vpn) {
+	pageTable[vpn].readOnly = true;
+    }
+
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
@@ -383,6 +480,14 @@ public class UserProcess {
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	if (restoredRegisters != null) {
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		processor.writeRegister(i, restoredRegisters[i]);
+
+	    restoredRegisters = null;
+	    return;
+	}
+
 	// by default, everything's 0
 	for (int i=0; i<processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
@@ -407,7 +512,10 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallCheckpoint = 13,
+	syscallReadCounters = 14,
+	syscallReadThreadStats = 15;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -428,6 +536,11 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  checkpoint(char *name);</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  readcounters(long long *counters,
+     *							int count);</tt></td></tr>
+     * <tr><td>15</td><td><tt>int  readthreadstats(long long *stats,
+     *							int count);</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -461,6 +574,12 @@ public class UserProcess {
 	    return doClose(a0);
 	case syscallUnlink:
 	    return doUnlink(a0);
+	case syscallCheckpoint:
+	    return doCheckpoint(a0);
+	case syscallReadCounters:
+	    return doReadCounters(a0, a1);
+	case syscallReadThreadStats:
+	    return doReadThreadStats(a0, a1);
 	}
 
 	Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -473,7 +592,7 @@ public class UserProcess {
 
     protected void doHalt() {
         if (this == root) {
-            Machine.halt();
+            Kernel.kernel.terminate();
             Lib.assertNotReached();
         }
     }
@@ -607,6 +726,115 @@ public class UserProcess {
 	return 0;
     }
     
+    /**
+     * Save this process to a checkpoint file, which Nachos can later be
+     * restored from with <tt>-r</tt>. Only a process running alone can be
+     * checkpointed. The syscall returns 0 after writing the checkpoint, and
+     * 1 in the process restored from it.
+     */
+    protected int doCheckpoint(int nameAddr) {
+	String filename = readVirtualMemoryString(nameAddr, MAX_STRING_LENGTH);
+	if (filename == null) return -1;
+	if (this != root || processCount != 1) return -1;
+
+	Processor processor = Machine.processor();
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+	try {
+	    DataOutputStream out = new DataOutputStream(bytes);
+
+	    // pages of zeros, like the stack and bss, are not stored
+	    out.writeInt(numPages);
+	    byte[] page = new byte[pageSize];
+	    for (int vpn=0; vpn<numPages; vpn++) {
+		Lib.assert(readVirtualMemory(vpn*pageSize, page) == pageSize);
+
+		int flags = isPageReadOnly(vpn) ? pageReadOnly : 0;
+		boolean zero = true;
+		for (int i=0; i<pageSize && zero; i++)
+		    zero = (page[i] == 0);
+		if (zero)
+		    flags |= pageZero;
+
+		out.writeByte(flags);
+		if (!zero)
+		    out.write(page);
+	    }
+
+	    // the restored process returns 1 from this syscall
+	    for (int i=0; i<Processor.numUserRegisters; i++) {
+		int value = processor.readRegister(i);
+		if (i == Processor.regV0)
+		    value = 1;
+		else if (i == Processor.regPC)
+		    value = processor.readRegister(Processor.regNextPC);
+		else if (i == Processor.regNextPC)
+		    value = processor.readRegister(Processor.regNextPC) + 4;
+		out.writeInt(value);
+	    }
+
+	    out.close();
+	}
+	catch (IOException e) {
+	    return -1;
+	}
+
+	if (!Machine.checkpoint(filename, bytes.toByteArray()))
+	    return -1;
+
+	return 0;
+    }
+    
+    /**
+     * Copy the first <i>count</i> performance counters of the processor to
+     * user memory, as 64-bit integers. Returns the number of counters copied.
+     */
+    protected int doReadCounters(int countersAddr, int count) {
+	if (count < 0) return -1;
+	count = Math.min(count, Processor.numCounters);
+
+	Processor processor = Machine.processor();
+	long[] values = new long[count];
+	for (int i=0; i<count; i++)
+	    values[i] = processor.readCounter(i);
+
+	if (!writeLongs(countersAddr, values))
+	    return -1;
+	return count;
+    }
+
+    /**
+     * Copy the first <i>count</i> statistics of the current thread to user
+     * memory, as 64-bit integers. Returns the number of statistics copied.
+     */
+    protected int doReadThreadStats(int statsAddr, int count) {
+	if (count < 0) return -1;
+	count = Math.min(count, ThreadStats.numStats);
+
+	ThreadStats stats = KThread.currentThread().getStats();
+	long[] values = new long[count];
+	for (int i=0; i<count; i++)
+	    values[i] = stats.read(i);
+
+	if (!writeLongs(statsAddr, values))
+	    return -1;
+	return count;
+    }
+
+    /**
+     * Write an array of 64-bit integers to user memory, least significant
+     * word first. Returns <tt>true</tt> if all of them were written.
+     */
+    private boolean writeLongs(int vaddr, long[] values) {
+	byte[] bytes = new byte[values.length*8];
+	for (int i=0; i<values.length; i++) {
+	    Lib.bytesFromInt(bytes, i*8, (int) values[i]);
+	    Lib.bytesFromInt(bytes, i*8+4, (int) (values[i] >>> 32));
+	}
+
+	return (writeVirtualMemory(vaddr, bytes) == bytes.length);
+    }
+    
     /**
      * Handle a user exception. Called by
      * <tt>UserKernel.exceptionHandler()</tt>. The
@@ -710,6 +938,11 @@ public class UserProcess {
     private int initialPC, initialSP;
     private int argc, argv;
 
+    /** Registers to start with, if this process was restored. */
+    private int[] restoredRegisters = null;
+
+    private static final int pageReadOnly = 1, pageZero = 2;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     
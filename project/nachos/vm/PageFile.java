@@ -52,10 +52,10 @@ public class PageFile {
 	}
 
 	page.vpn = entry.vpn;
-        byte[] memory = Machine.processor().getMemory();
         int paddr = entry.ppn * pageSize;
         int faddr = page.ppn * pageSize;
-        int bytesWritten = swapfile.write(faddr, memory, paddr, pageSize);
+        int bytesWritten =
+	    Machine.processor().storeMemory(swapfile, faddr, paddr, pageSize);
         if (bytesWritten != pageSize) {
             if (newpage) free(pid, page.vpn);
             lock.release();
@@ -72,10 +72,10 @@ public class PageFile {
 	VirtualAddress key = new VirtualAddress(pid, vpn);
 	TranslationEntry page = (TranslationEntry)hashtable.get(key);
 	
-	byte[] memory = Machine.processor().getMemory();
         int paddr = ppn * pageSize;
         int faddr = page.ppn * pageSize;
-        int bytesRead = swapfile.read(faddr, memory, paddr, pageSize);
+        int bytesRead =
+	    Machine.processor().loadMemory(swapfile, faddr, paddr, pageSize);
         if (bytesRead != pageSize) {
             lock.release();
     	    return false;
@@ -88,9 +88,12 @@ public class PageFile {
     public void free(int pid, int vpn) {
 	lock.acquire();
 	VirtualAddress key = new VirtualAddress(pid, vpn);
-	hashtable.remove(key);
-	TranslationEntry [] entries = new TranslationEntry[1];
-	freepages.deallocPages(entries);
+	TranslationEntry page = (TranslationEntry)hashtable.remove(key);
+	if (page != null) {
+	    TranslationEntry [] entries = new TranslationEntry[1];
+	    entries[0] = page;
+	    freepages.deallocPages(entries);
+	}
 	lock.release();
     }
     
@@ -2,7 +2,6 @@ package nachos.vm;
 
 import java.lang.reflect.Array;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Hashtable;
 
 import nachos.machine.*;
@@ -80,7 +79,7 @@ public class VMProcess extends UserProcess {
 	Lib.assert(offset >= 0 && length >= 0
 			&& offset + length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
+	Processor processor = Machine.processor();
 
 	int vpn = vaddr / pageSize;
 	int pageOffset = vaddr % pageSize;
@@ -94,7 +93,7 @@ public class VMProcess extends UserProcess {
 	    TranslationEntry page = getEntryPPN(ppn);
 	    page.used = true;
 	    int paddr = ppn * pageSize + pageOffset;
-	    System.arraycopy(memory, paddr, data, offset, amount);
+	    processor.readMemory(paddr, data, offset, amount);
 
 	    Lib.assert(page.vpn == vpn);
 	    ++vpn;
@@ -112,7 +111,7 @@ public class VMProcess extends UserProcess {
 	Lib.assert(offset >= 0 && length >= 0
 			&& offset + length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
+	Processor processor = Machine.processor();
 
 	int vpn = vaddr / pageSize;
 	int pageOffset = vaddr % pageSize;
@@ -130,7 +129,7 @@ public class VMProcess extends UserProcess {
 	    page.used = true;
 	    page.dirty = true;
 	    int paddr = ppn * pageSize + pageOffset;
-	    System.arraycopy(data, offset, memory, paddr, amount);
+	    processor.writeMemory(paddr, data, offset, amount);
 
 	    Lib.assert(page.vpn == vpn);
 	    ++vpn;
@@ -144,6 +143,37 @@ public class VMProcess extends UserProcess {
 	return length - bytesLeft;
     }
 
+    /**
+     * Initializes page tables for a process being restored from a
+     * checkpoint. Every page starts out as a page of zeros, and is paged in
+     * as <tt>restore()</tt> writes it.
+     *
+     * @return <tt>true</tt> if successful.
+     */
+    protected boolean restoreSections() {
+	sectionTable = new int[numPages];
+	for (int vpn = 0; vpn < numPages; ++vpn) {
+	    sectionTable[vpn] = -1;
+	}
+	return true;
+    }
+
+    /**
+     * Test whether a page of this process is read-only. Only pages loaded
+     * from read-only COFF sections are.
+     */
+    protected boolean isPageReadOnly(int vpn) {
+	int s = sectionTable[vpn];
+	return s != -1 && coff.getSection(s).isReadOnly();
+    }
+
+    /**
+     * Demand-paged processes don't keep the read-only bit of a page while it
+     * is swapped out, so restored pages stay writable.
+     */
+    protected void setPageReadOnly(int vpn) {
+    }
+
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
@@ -223,9 +253,14 @@ public class VMProcess extends UserProcess {
 	TranslationEntry page = getEntryPPN(ppn);
 	Lib.assert(page.valid);
 
+	// the translation can only go into the set for this page
+	Processor processor = Machine.processor();
+	int ways = processor.getTLBAssociativity();
+	int first = processor.getTLBSet(vpn) * ways;
+
 	int toRemove = -1;
-	for (int i = 0; i < Machine.processor().getTLBSize(); ++i) {
-	    TranslationEntry entry = Machine.processor().readTLBEntry(i);
+	for (int i = first; i < first + ways; ++i) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
 	    if (!entry.valid) {
 		toRemove = i;
 		break;
@@ -234,10 +269,10 @@ public class VMProcess extends UserProcess {
 	    }
 	}
 	if (toRemove == -1) { // all TLB are valid and used
-	    toRemove = Lib.random(Machine.processor().getTLBSize());
+	    toRemove = processor.getTLBReplacementHint(vpn);
 	}
 
-	Machine.processor().writeTLBEntry(toRemove, page);
+	processor.writeTLBEntry(toRemove, page);
 
 	unlockPage(ppn);
     }
@@ -271,9 +306,8 @@ public class VMProcess extends UserProcess {
     }
     
     private void clearPage(int ppn) {
-	byte [] memory = Machine.processor().getMemory();
 	int paddr = ppn * pageSize;
-	Arrays.fill(memory, paddr, paddr+pageSize, (byte)0);
+	Machine.processor().clearMemory(paddr, pageSize);
     }
 
     private int lockPage(int vpn, boolean newpage) {
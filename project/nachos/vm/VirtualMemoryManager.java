@@ -13,7 +13,7 @@ public class VirtualMemoryManager {
 
     public VirtualMemoryManager(String filename) {
 	lock.acquire();
-	int pages = Machine.processor().getMemory().length / Processor.pageSize;
+	int pages = Machine.processor().getNumPhysPages();
 	invertedPageTable = new TableEntry[pages];
 	for (int i = 0; i < pages; ++i) {
 	    invertedPageTable[i] = new TableEntry(i);